@@ -20,33 +20,101 @@ package com.trifork.bitcask;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.regex.Pattern;
 
 import com.google.protobuf.ByteString;
 import com.trifork.bitcask.BitCaskLock.Type;
+import com.trifork.bitcask.BitCaskOptions.SyncStrategy;
 
+/**
+ * A bitcask directory opened for reading, and possibly writing.
+ * 
+ * <p>
+ * An instance may be shared between threads. Reads ({@link #get(ByteString)}
+ * and friends) never block each other or writers: the keydir is a
+ * concurrent map, files are read with positional reads or through a
+ * mapping, and the set of open files is a lock free cache. Writes
+ * ({@link #put(ByteString, ByteString)}, {@link #write(WriteBatch)}) are
+ * serialized with each other, and a read that starts after a put has
+ * returned sees that put. {@link #merge()} may run alongside both.
+ * {@link #getAsync(ByteString)}, {@link #putAsync(ByteString, ByteString)}
+ * and {@link #deleteAsync(ByteString)} make the same calls on threads
+ * owned by the bitcask, async writes on a single writer thread.
+ * {@link #close()} must not race with other calls on the same instance.
+ * </p>
+ */
 public class BitCask {
 
-	private static final ByteString TOMBSTONE = ByteString
+	static final ByteString TOMBSTONE = ByteString
 			.copyFromUtf8("bitcask_tombstone");
 
 	/** bc_state */
-	File dirname;
-	BitCaskFile write_file = BitCaskFile.FRESH_FILE;
+	final File dirname;
+	volatile BitCaskFile write_file = BitCaskFile.FRESH_FILE;
 	BitCaskLock write_lock;
-	Map<File, BitCaskFile> read_files = new HashMap<File, BitCaskFile>();
-	long max_file_size;
-	BitCaskOptions opts;
-	BitCaskKeyDir keydir;
+	final ReadFileCache read_files;
+	final long max_file_size;
+	final BitCaskOptions opts;
+	volatile BitCaskKeyDir keydir;
+	final Object write_mutex = new Object();
+	private final Object checkpoint_mutex = new Object();
+	private ScheduledExecutorService timer;
+	/** runs automatic merges, so they do not hold up the timer */
+	private ScheduledExecutorService merger;
+	/** runs async reads, unless opts.io_executor is given */
+	private volatile ExecutorService io_pool;
+	/** writes batches of async writes, one batch at a time */
+	private volatile ExecutorService writer;
+	/** async writes not yet taken by the writer */
+	private final Queue<AsyncWrite<?>> async_writes = new ConcurrentLinkedQueue<AsyncWrite<?>>();
+	/** no more async calls are accepted */
+	private boolean closed;
+	private boolean sweeping;
+	/** bytes of sealed files mapped for reading */
+	final AtomicLong mapped_bytes = new AtomicLong();
+
+	private BitCask(File dirname, BitCaskOptions opts) {
+		this.dirname = dirname;
+		this.opts = opts;
+		this.max_file_size = opts.max_file_size;
+		this.read_files = new_read_files();
+	}
 
 	public static BitCask open(File dirname, BitCaskOptions opts)
 			throws Exception {
-		BitCask result = new BitCask();
+		BitCask result = new BitCask(dirname, opts);
 
 		BitCaskFile.ensuredir(new File(dirname, "bitcask"));
 
@@ -55,57 +123,475 @@ public class BitCask {
 			result.write_file = BitCaskFile.FRESH_FILE;
 		}
 
-		result.dirname = dirname;
-
 		BitCaskKeyDir keydir;
-		keydir = BitCaskKeyDir.keydir_new(dirname, opts.open_timeout_secs);
+		keydir = BitCaskKeyDir.keydir_new(dirname, opts);
 		result.keydir = keydir;
 		if (!keydir.is_ready()) {
 			File[] files = result.readable_files();
-			BitCask.scan_key_files(files, keydir);
+			Map<Integer, Long> covered = opts.keydir_checkpoint ? KeyDirCheckpoint
+					.load(dirname, keydir) : null;
+			if (covered == null) {
+				BitCask.scan_key_files(files, new long[files.length], keydir,
+						opts.open_threads, opts.expiry_time(), opts.scan_block_size);
+			} else {
+				BitCask.replay_key_files(files, covered, keydir,
+						opts.open_threads, opts.expiry_time(), opts.scan_block_size);
+			}
 			keydir.mark_ready();
 		}
 
-		result.max_file_size = opts.max_file_size;
-		result.dirname = dirname;
-		result.opts = opts;
+		if (keydir.has_expiring()) {
+			result.start_expiry_sweeper();
+		}
+
+		if (opts.keydir_checkpoint && opts.keydir_checkpoint_secs > 0) {
+			result.start_checkpoint_timer();
+		}
+
+		if (opts.is_read_write() && opts.merge_check_secs > 0) {
+			result.start_merge_scheduler();
+		}
 
 		return result;
 	}
 
 	public void close() throws IOException {
 
-		// release?
-		keydir = null;
+		ExecutorService writing;
+		synchronized (this) {
+			closed = true;
+			writing = writer;
+			writer = null;
+		}
+
+		// async writes already accepted are written before the file closes;
+		// they may still start timers, so those are stopped after this
+		await_termination(writing);
 
-		for (BitCaskFile read_file : read_files.values()) {
-			read_file.close();
+		ScheduledExecutorService merging;
+		synchronized (this) {
+			if (timer != null) {
+				timer.shutdownNow();
+				timer = null;
+			}
+			if (io_pool != null) {
+				io_pool.shutdown();
+				io_pool = null;
+			}
+			merging = merger;
+			merger = null;
+		}
+
+		// let a running merge finish; it is at most max_merge_size
+		await_termination(merging);
+
+		if (opts.keydir_checkpoint && keydir != null) {
+			try {
+				checkpoint();
+			} catch (Exception e) {
+				// the next open will scan all files
+			}
 		}
 
+		// release?
+		keydir = null;
+
 		read_files.clear();
 
 		if (write_file == null || write_file == BitCaskFile.FRESH_FILE) {
 			// ok
 		} else {
+			if (opts.sync_strategy != SyncStrategy.NONE) {
+				write_file.sync();
+			}
 			write_file.close();
 			write_lock.release();
 		}
 	}
 
 	public void put(ByteString key, ByteString value) throws IOException {
+		put(key, value, 0);
+	}
+
+	/**
+	 * Put a value that expires after ttl_secs seconds (or never, if 0).
+	 * Expired keys are no longer found, and are removed from the keydir by
+	 * a background sweep.
+	 */
+	public void put(ByteString key, ByteString value, int ttl_secs)
+			throws IOException {
+		BitCaskFile file;
+		BitCaskEntry entry;
+
+		synchronized (write_mutex) {
+			entry = append_put(key, value, ttl_secs);
+			file = write_file;
+		}
+
+		if (opts.sync_strategy == SyncStrategy.GROUP_COMMIT) {
+			file.sync_to(entry.offset + entry.total_sz);
+		}
+	}
+
+	/** Write key/value and update the keydir; caller holds write_mutex, and syncs */
+	private BitCaskEntry append_put(ByteString key, ByteString value,
+			int ttl_secs) throws IOException {
+		if (ttl_secs < 0) {
+			throw new IllegalArgumentException("negative ttl: " + ttl_secs);
+		}
+
+		BitCaskFile file = prepare_write(key, value);
+		int tstamp = BitCaskFile.tstamp();
+		BitCaskEntry entry = file.write(key, value, tstamp, ttl_secs == 0 ? 0
+				: tstamp + ttl_secs);
+		keydir.put(key, entry);
+
+		if (ttl_secs != 0) {
+			start_expiry_sweeper();
+		}
+		return entry;
+	}
+
+	/**
+	 * Delete key by writing a tombstone for it. The key is removed from the
+	 * keydir right away, and its old entry and the tombstone count as dead
+	 * bytes in {@link #stats()}. Returns false if there was no such key.
+	 */
+	public boolean delete(ByteString key) throws IOException {
+		BitCaskFile file;
+		BitCaskEntry tombstone;
+
+		synchronized (write_mutex) {
+			tombstone = append_tombstone(key);
+			if (tombstone == null) {
+				return false;
+			}
+			file = write_file;
+		}
+
+		if (opts.sync_strategy == SyncStrategy.GROUP_COMMIT) {
+			file.sync_to(tombstone.offset + tombstone.total_sz);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Write a tombstone for key and remove it from the keydir, or return null
+	 * if there is no such key; caller holds write_mutex, and syncs
+	 */
+	private BitCaskEntry append_tombstone(ByteString key) throws IOException {
+		if (lookup(key) == null) {
+			return null;
+		}
+
+		BitCaskFile file = prepare_write(key, TOMBSTONE);
+		BitCaskEntry tombstone = file.write(key, TOMBSTONE);
+
+		// a merge may move the entry meanwhile
+		BitCaskEntry old;
+		do {
+			old = keydir.get(key);
+		} while (old != null && !keydir.remove(key, old));
+
+		keydir.put_dead(tombstone);
+		return tombstone;
+	}
+
+	public boolean delete(String key) throws IOException {
+		return delete(ByteString.copyFromUtf8(key));
+	}
+
+	/**
+	 * Write all entries of a batch. Entries that go into the same data file
+	 * are appended with one gathering write, and the keydir is updated
+	 * once the whole batch has been written.
+	 */
+	public void write(WriteBatch batch) throws IOException {
+		int n = batch.size();
+		if (n == 0) {
+			return;
+		}
+
+		BitCaskFile file;
+		BitCaskEntry[] entries = new BitCaskEntry[n];
+
+		synchronized (write_mutex) {
+			int i = 0;
+			do {
+				file = prepare_write(batch.keys.get(i), batch.values.get(i));
+
+				// take as many entries as fit before the next wrap
+				long room = max_file_size - file.size();
+				long size = file.stored_entry_size(batch.keys.get(i),
+						batch.values.get(i));
+				int j = i + 1;
+				while (j < n) {
+					int entry_size = file.stored_entry_size(batch.keys.get(j),
+							batch.values.get(j));
+					if (size + entry_size > room) {
+						break;
+					}
+					size += entry_size;
+					j++;
+				}
+
+				BitCaskEntry[] written = file.write(batch, i, j);
+				System.arraycopy(written, 0, entries, i, written.length);
+				i = j;
+			} while (i < n);
+
+			keydir.put_all(batch.keys, 0, entries);
+		}
+
+		if (opts.sync_strategy == SyncStrategy.GROUP_COMMIT) {
+			BitCaskEntry last = entries[n - 1];
+			file.sync_to(last.offset + last.total_sz);
+		}
+	}
+
+	/**
+	 * Get the value for key on the {@link BitCaskOptions#io_executor}, so
+	 * that the caller does not block on file I/O.
+	 */
+	public Future<ByteString> getAsync(final ByteString key) {
+		FutureTask<ByteString> task = new FutureTask<ByteString>(
+				new Callable<ByteString>() {
+					@Override
+					public ByteString call() throws Exception {
+						return get(key);
+					}
+				});
+		io_executor().execute(task);
+		return task;
+	}
+
+	public Future<Void> putAsync(ByteString key, ByteString value) {
+		return putAsync(key, value, 0);
+	}
+
+	/**
+	 * Put key/value on the writer thread of this bitcask. Async writes are
+	 * applied in the order they were made, and a get sees the put once its
+	 * future is done. The writer appends all writes queued meanwhile before
+	 * it syncs, so with {@link SyncStrategy#GROUP_COMMIT} they share one
+	 * force. To write many entries at once, a {@link WriteBatch} is cheaper.
+	 * 
+	 * @throws RejectedExecutionException
+	 *             if this bitcask is closed
+	 */
+	public Future<Void> putAsync(final ByteString key, final ByteString value,
+			final int ttl_secs) {
+		return write_async(new AsyncWrite<Void>() {
+			@Override
+			Void append() throws IOException {
+				written = append_put(key, value, ttl_secs);
+				return null;
+			}
+		});
+	}
+
+	/** Delete key on the writer thread, see {@link #putAsync(ByteString, ByteString, int)} */
+	public Future<Boolean> deleteAsync(final ByteString key) {
+		return write_async(new AsyncWrite<Boolean>() {
+			@Override
+			Boolean append() throws IOException {
+				written = append_tombstone(key);
+				return written != null;
+			}
+		});
+	}
+
+	/**
+	 * An async put or delete. Its future is done once the batch it was
+	 * written in is synced.
+	 */
+	private static abstract class AsyncWrite<T> extends FutureTask<T> {
+		private static final Runnable NOT_RUN = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+
+		/** the entry appended, if any */
+		BitCaskEntry written;
+		private T result;
+		private Throwable failure;
+
+		AsyncWrite() {
+			// completed by finish(), never run
+			super(NOT_RUN, null);
+		}
+
+		/** Append to the write file, holding write_mutex */
+		abstract T append() throws IOException;
+
+		void write() {
+			try {
+				result = append();
+			} catch (Throwable e) {
+				failure = e;
+			}
+		}
+
+		void fail(Throwable e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+
+		void finish() {
+			if (failure != null) {
+				setException(failure);
+			} else {
+				set(result);
+			}
+		}
+	}
+
+	private <T> Future<T> write_async(AsyncWrite<T> write) {
+		async_writes.add(write);
+		try {
+			writer().execute(new Runnable() {
+				@Override
+				public void run() {
+					write_batch();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if (async_writes.remove(write)) {
+				throw e;
+			}
+			// else taken by a batch that is being written
+		}
+		return write;
+	}
+
+	/**
+	 * Append all queued async writes, sync once, and then complete them. Runs
+	 * on the writer once per async write; most runs find theirs taken.
+	 */
+	private void write_batch() {
+		List<AsyncWrite<?>> batch = new ArrayList<AsyncWrite<?>>();
+		AsyncWrite<?> write;
+		while ((write = async_writes.poll()) != null) {
+			batch.add(write);
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		BitCaskFile file;
+		BitCaskEntry last = null;
+		synchronized (write_mutex) {
+			for (AsyncWrite<?> w : batch) {
+				if (!w.isCancelled()) {
+					w.write();
+					if (w.written != null) {
+						last = w.written;
+					}
+				}
+			}
+			file = write_file;
+		}
+
+		if (last != null && opts.sync_strategy == SyncStrategy.GROUP_COMMIT) {
+			try {
+				file.sync_to(last.offset + last.total_sz);
+			} catch (IOException e) {
+				for (AsyncWrite<?> w : batch) {
+					w.fail(e);
+				}
+			}
+		}
+
+		for (AsyncWrite<?> w : batch) {
+			w.finish();
+		}
+	}
+
+	private Executor io_executor() {
+		if (opts.io_executor != null) {
+			return opts.io_executor;
+		}
+		ExecutorService pool = io_pool;
+		if (pool == null) {
+			synchronized (this) {
+				if (closed) {
+					throw new RejectedExecutionException("closed");
+				}
+				pool = io_pool;
+				if (pool == null) {
+					io_pool = pool = Executors.newFixedThreadPool(
+							opts.io_threads, daemon_threads("bitcask io "
+									+ dirname));
+				}
+			}
+		}
+		return pool;
+	}
+
+	private ExecutorService writer() {
+		ExecutorService writer = this.writer;
+		if (writer == null) {
+			synchronized (this) {
+				if (closed) {
+					throw new RejectedExecutionException("closed");
+				}
+				writer = this.writer;
+				if (writer == null) {
+					this.writer = writer = Executors
+							.newSingleThreadExecutor(daemon_threads("bitcask writer "
+									+ dirname));
+				}
+			}
+		}
+		return writer;
+	}
+
+	private static ThreadFactory daemon_threads(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	private static void await_termination(ExecutorService executor) {
+		if (executor == null) {
+			return;
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Return the file to write key/value into, wrapping as needed */
+	private BitCaskFile prepare_write(ByteString key, ByteString value)
+			throws IOException {
 		if (write_file == null) {
 			throw new IOException("read only");
 		}
 
 		switch (write_file.check_write(key, value, max_file_size)) {
 		case WRAP: {
+			if (opts.sync_strategy != SyncStrategy.NONE) {
+				write_file.sync();
+			}
 			write_file.close_for_writing();
 			BitCaskFile last_write_file = write_file;
-			BitCaskFile nwf = BitCaskFile.create(dirname);
+			BitCaskFile nwf = BitCaskFile.create(dirname, opts);
 			write_lock.write_activefile(nwf);
 
 			write_file = nwf;
-			read_files.put(last_write_file.filename, last_write_file);
+			map_sealed(last_write_file);
+			read_files.put(last_write_file);
 			break;
 		}
 
@@ -113,12 +599,16 @@ public class BitCask {
 			// time to start our first write file
 		{
 			BitCaskLock wl = BitCaskLock.acquire(Type.WRITE, dirname);
-			BitCaskFile nwf = BitCaskFile.create(dirname);
+			BitCaskFile nwf = BitCaskFile.create(dirname, opts);
 			wl.write_activefile(nwf);
 
 			this.write_lock = wl;
 			this.write_file = nwf;
 
+			if (opts.sync_strategy == SyncStrategy.SECONDS) {
+				start_sync_timer();
+			}
+
 			break;
 		}
 
@@ -126,52 +616,434 @@ public class BitCask {
 			// we're good to go
 		}
 
-		BitCaskEntry entry = write_file.write(key, value);
-		keydir.put(key, entry);
+		return write_file;
 	}
 
-	public ByteString get(ByteString key) throws IOException {
-		return get(key, 2);
+	/** {seconds, N} sync strategy: force the active write file periodically */
+	private void start_sync_timer() {
+		int secs = Math.max(1, opts.sync_interval_secs);
+		timer().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				BitCaskFile file = write_file;
+				try {
+					if (file != null && file != BitCaskFile.FRESH_FILE) {
+						file.sync();
+					}
+				} catch (IOException e) {
+					// file was closed after a wrap; it was forced then
+				}
+			}
+		}, secs, secs, TimeUnit.SECONDS);
 	}
 
-	private ByteString get(ByteString key, int try_num) throws IOException {
-		BitCaskEntry entry = keydir.get(key);
-		if (entry == null) {
-			return null;
+	private void start_checkpoint_timer() {
+		int secs = opts.keydir_checkpoint_secs;
+		timer().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkpoint();
+				} catch (Exception e) {
+					// try again next time
+				}
+			}
+		}, secs, secs, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Write a snapshot of the keydir for the next open. Nothing is written
+	 * while another process is writing to or merging this bitcask, since
+	 * those entries are not in our keydir.
+	 */
+	void checkpoint() throws Exception {
+		synchronized (checkpoint_mutex) {
+
+			File writing_file = BitCaskLock.read_activefile(Type.WRITE, dirname);
+			Map<Integer, Long> covered = new HashMap<Integer, Long>();
+			Map<Integer, long[]> totals = new HashMap<Integer, long[]>();
+
+			synchronized (write_mutex) {
+				BitCaskFile wf = write_file;
+				boolean ours = wf != null && wf != BitCaskFile.FRESH_FILE
+						&& wf.filename.equals(writing_file);
+				if ((writing_file != null && !ours)
+						|| BitCaskLock.read_activefile(Type.MERGE, dirname) != null) {
+					return;
+				}
+
+				// all writes below these sizes are in the keydir by now
+				for (File f : readable_files()) {
+					covered.put(BitCaskFile.tstamp(f), f.length());
+				}
+				if (ours) {
+					covered.put(wf.file_id, wf.size());
+				}
+
+				// and the totals must not count later writes, which are replayed
+				for (Integer file_id : covered.keySet()) {
+					FileStats stats = keydir.fstats(file_id);
+					totals.put(file_id, stats == null ? new long[2] : new long[] {
+							stats.total_keys(), stats.total_bytes() });
+				}
+			}
+
+			KeyDirCheckpoint.write(dirname, covered, totals, keydir,
+					opts.expiry_time());
+		}
+	}
+
+	/**
+	 * Evict expired entries from the keydir every
+	 * {@link BitCaskOptions#expiry_sweep_secs}; started once there are any.
+	 */
+	private synchronized void start_expiry_sweeper() {
+		if (sweeping || opts.expiry_sweep_secs <= 0) {
+			return;
+		}
+		sweeping = true;
+
+		int secs = opts.expiry_sweep_secs;
+		timer().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				BitCaskKeyDir keydir = BitCask.this.keydir;
+				if (keydir != null) {
+					keydir.sweep(BitCaskFile.tstamp());
+				}
+			}
+		}, secs, secs, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Every {@link BitCaskOptions#merge_check_secs}, merge the
+	 * {@link #merge_candidates()} if within the merge window. Each run
+	 * merges at most max_merge_size bytes, so a large backlog is worked
+	 * off in slices rather than by one long merge.
+	 */
+	private synchronized void start_merge_scheduler() {
+		merger = Executors.newSingleThreadScheduledExecutor(daemon_threads("bitcask merge "
+				+ dirname));
+
+		int secs = opts.merge_check_secs;
+		merger.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+				if (!opts.in_merge_window(hour)) {
+					return;
+				}
+
+				try {
+					File[] files = merge_candidates();
+					if (files.length > 0) {
+						merge(files);
+					}
+				} catch (IOException e) {
+					// e.g. another merge is running; check again next time
+				}
+			}
+		}, secs, secs, TimeUnit.SECONDS);
+	}
+
+	/** Background timer owned by this bitcask; stopped on close */
+	synchronized ScheduledExecutorService timer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(daemon_threads("bitcask "
+					+ dirname));
 		}
+		return timer;
+	}
 
-		if (entry.tstamp < opts.expiry_time()) {
+	public ByteString get(ByteString key) throws IOException {
+		ByteBuffer value = getBuffer(key);
+		if (value == null) {
 			return null;
 		}
+		return ByteString.copyFrom(value);
+	}
+
+	/**
+	 * Get the value for key as a read-only buffer. For mapped (sealed) files
+	 * this is a view of the mapping, otherwise the entry is fetched with a
+	 * single read and the buffer wraps the value within it.
+	 */
+	public ByteBuffer getBuffer(ByteString key) throws IOException {
+		for (int try_num = 2;; try_num--) {
+			BitCaskEntry entry = lookup(key);
+			if (entry == null) {
+				return null;
+			}
+
+			try {
+				ReadFileCache.Handle h = get_filestate(entry.file_id);
+				ByteBuffer value;
+				try {
+					value = h.file.read_value(entry.offset, entry.total_sz, key);
+				} finally {
+					read_files.release(h);
+				}
+				return is_tombstone(value) ? null : value;
+
+			} catch (FileNotFoundException e) {
+				/** merging deleted file between keydir.get and here */
+				if (try_num <= 0)
+					throw e;
+			} catch (ClosedChannelException e) {
+				/** merging closed file between get_filestate and here */
+				if (try_num <= 0)
+					throw e;
+			}
 
-		BitCaskFile file_state = get_filestate(entry.file_id);
-		/** merging deleted file between keydir.get and here */
-		if (file_state == null) {
 			Thread.yield();
-			return get(key, try_num - 1);
 		}
+	}
 
-		ByteString[] kv = file_state.read(entry.offset, entry.total_sz);
+	/**
+	 * Read the value for key into dst, starting at its position, which is
+	 * advanced past the value. Returns the value size, or -1 if key is not
+	 * found, in which case dst is unchanged, as it is when the value does
+	 * not fit. Only the value needs room in dst, not the entry around it.
+	 * 
+	 * @throws BufferOverflowException if the value does not fit in dst 
+	 */
+	public int get(ByteString key, ByteBuffer dst) throws IOException {
+		for (int try_num = 2;; try_num--) {
+			BitCaskEntry entry = lookup(key);
+			if (entry == null) {
+				return -1;
+			}
+
+			try {
+				ReadFileCache.Handle h = get_filestate(entry.file_id);
+				try {
+					if (entry.total_sz > BitCaskFile.entry_size(key, TOMBSTONE) + 1) {
+						return h.file.read_value(entry.offset, entry.total_sz,
+								key, dst);
+					}
+
+					// may be a tombstone (with a tag), which must not reach dst
+					ByteBuffer value = h.file.read_value(entry.offset,
+							entry.total_sz, key);
+					if (is_tombstone(value)) {
+						return -1;
+					}
+					int size = value.remaining();
+					if (dst.remaining() < size) {
+						throw new BufferOverflowException();
+					}
+					dst.put(value);
+					return size;
+				} finally {
+					read_files.release(h);
+				}
+
+			} catch (FileNotFoundException e) {
+				/** merging deleted file between keydir.get and here */
+				if (try_num <= 0)
+					throw e;
+			} catch (ClosedChannelException e) {
+				/** merging closed file between get_filestate and here */
+				if (try_num <= 0)
+					throw e;
+			}
 
-		if (kv[1].equals(TOMBSTONE)) {
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Get the values of many keys at once; keys that are not found are left
+	 * out of the result. The keys are looked up in the keydir together, and
+	 * the entries of each file are read in offset order. Entries less than
+	 * {@link BitCaskOptions#read_coalesce_gap} bytes apart are fetched with
+	 * one read of up to scan_block_size bytes, which pays off as values
+	 * written together lie next to each other.
+	 */
+	public Map<ByteString, ByteString> getAll(Collection<ByteString> keys)
+			throws IOException {
+		BitCaskKeyDir keydir = this.keydir;
+		if (keydir == null) {
+			throw new IOException("closed");
+		}
+
+		ByteString[] ks = keys.toArray(new ByteString[keys.size()]);
+		final BitCaskEntry[] ents = keydir.get_all(ks);
+
+		int expiry_time = opts.expiry_time();
+		int now = BitCaskFile.tstamp();
+		List<Integer> found = new ArrayList<Integer>(ks.length);
+		for (int i = 0; i < ks.length; i++) {
+			BitCaskEntry ent = ents[i];
+			if (ent != null && ent.tstamp >= expiry_time && !ent.is_expired(now)) {
+				found.add(i);
+			}
+		}
+
+		Collections.sort(found, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i, Integer j) {
+				BitCaskEntry a = ents[i], b = ents[j];
+				if (a.file_id != b.file_id) {
+					return a.file_id < b.file_id ? -1 : 1;
+				}
+				return a.offset < b.offset ? -1 : a.offset == b.offset ? 0 : 1;
+			}
+		});
+
+		Map<ByteString, ByteString> result = new HashMap<ByteString, ByteString>();
+		int i = 0;
+		while (i < found.size()) {
+
+			// extend the read over the following entries close enough
+			BitCaskEntry first = ents[found.get(i)];
+			long end = first.offset + first.total_sz;
+			int j = i + 1;
+			for (; j < found.size(); j++) {
+				BitCaskEntry next = ents[found.get(j)];
+				if (next.file_id != first.file_id
+						|| next.offset - end > opts.read_coalesce_gap
+						|| next.offset + next.total_sz - first.offset > opts.scan_block_size) {
+					break;
+				}
+				end = Math.max(end, next.offset + next.total_sz);
+			}
+
+			List<Integer> run = found.subList(i, j);
+			try {
+				read_run(ks, ents, run, first.offset, end, result);
+			} catch (FileNotFoundException e) {
+				/** merging deleted the file; get looks the keys up again */
+				get_each(ks, run, result);
+			} catch (ClosedChannelException e) {
+				/** merging closed the file */
+				get_each(ks, run, result);
+			}
+
+			i = j;
+		}
+
+		return result;
+	}
+
+	/** Read the entries of run, all in one file, from start to end at once */
+	private void read_run(ByteString[] keys, BitCaskEntry[] ents,
+			List<Integer> run, long start, long end,
+			Map<ByteString, ByteString> result) throws IOException {
+
+		ReadFileCache.Handle h = get_filestate(ents[run.get(0)].file_id);
+		try {
+			ByteBuffer range = h.file.read_range(start, (int) (end - start));
+			for (int k : run) {
+				BitCaskEntry ent = ents[k];
+				ByteBuffer value = h.file.value_at(range,
+						(int) (ent.offset - start), ent.offset, ent.total_sz,
+						keys[k]);
+				if (!is_tombstone(value)) {
+					result.put(keys[k], ByteString.copyFrom(value));
+				}
+			}
+		} finally {
+			read_files.release(h);
+		}
+	}
+
+	private void get_each(ByteString[] keys, List<Integer> run,
+			Map<ByteString, ByteString> result) throws IOException {
+		for (int k : run) {
+			ByteString value = get(keys[k]);
+			if (value != null) {
+				result.put(keys[k], value);
+			}
+		}
+	}
+
+	/** Find the live entry for key, or null */
+	private BitCaskEntry lookup(ByteString key) throws IOException {
+		BitCaskKeyDir keydir = this.keydir;
+		if (keydir == null) {
+			throw new IOException("closed");
+		}
+
+		BitCaskEntry entry = keydir.get(key);
+		if (entry == null || entry.tstamp < opts.expiry_time()
+				|| entry.is_expired(BitCaskFile.tstamp())) {
 			return null;
-		} else {
-			return kv[1];
 		}
+		return entry;
+	}
+
+	private static boolean is_tombstone(ByteBuffer value) {
+		return value.remaining() == TOMBSTONE.size()
+				&& value.equals(TOMBSTONE.asReadOnlyByteBuffer());
+	}
+
+	/** Acquire the file for reading; it must be released after use */
+	private ReadFileCache.Handle get_filestate(int fileId) throws IOException {
+		return read_files.acquire(BitCaskFile.mk_filename(dirname, fileId));
+	}
+
+	private ReadFileCache new_read_files() {
+		return new ReadFileCache(opts.max_open_files) {
+			@Override
+			BitCaskFile open(File filename) throws IOException {
+				BitCaskFile f = BitCaskFile.open(filename);
+				if (f.file_id != write_file.file_id) {
+					map_sealed(f);
+				}
+				return f;
+			}
+
+			@Override
+			void close(BitCaskFile f) throws IOException {
+				close_read_file(f);
+			}
+		};
 	}
 
-	private BitCaskFile get_filestate(int fileId) throws IOException {
+	/**
+	 * Live and total keys and bytes of each data file, by file id. Updated
+	 * as entries are written, replaced and removed.
+	 */
+	public SortedMap<Integer, FileStats> stats() {
+		return keydir.fstats();
+	}
+
+	/** Hit, miss and eviction counters for the files open for reading */
+	public ReadFileCache file_cache() {
+		return read_files;
+	}
 
-		File fname = BitCaskFile.mk_filename(dirname, fileId);
-		BitCaskFile f = read_files.get(fname);
-		if (f != null) {
-			return f;
+	/**
+	 * Map a sealed file for reading, if that fits within
+	 * {@link BitCaskOptions#max_mapped_bytes}; otherwise reads of the file
+	 * keep using positional reads on its channel.
+	 */
+	private void map_sealed(BitCaskFile f) {
+		long size = f.size();
+		if (size == 0 || size > Integer.MAX_VALUE) {
+			return;
 		}
 
-		f = BitCaskFile.open(dirname, fileId);
-		read_files.put(fname, f);
+		long mapped;
+		do {
+			mapped = mapped_bytes.get();
+			if (mapped + size > opts.max_mapped_bytes) {
+				return;
+			}
+		} while (!mapped_bytes.compareAndSet(mapped, mapped + size));
+
+		try {
+			f.map(size);
+		} catch (IOException e) {
+			// fall back to reading through the channel
+			mapped_bytes.addAndGet(-size);
+		}
+	}
 
-		return f;
+	private void close_read_file(BitCaskFile f) throws IOException {
+		mapped_bytes.addAndGet(-f.mapped_size());
+		f.close();
 	}
 
 	private static final Comparator<? super File> REVERSE_DATA_FILE_COMPARATOR = new Comparator<File>() {
@@ -207,7 +1079,7 @@ public class BitCask {
 		File[] files = dirname.listFiles(new FileFilter() {
 			@Override
 			public boolean accept(File f) {
-				if (f == writing_file || f == merging_file)
+				if (f.equals(writing_file) || f.equals(merging_file))
 					return false;
 
 				return DATA_FILE.matcher(f.getName()).matches();
@@ -221,27 +1093,250 @@ public class BitCask {
 
 	static void scan_key_files(File[] files, final BitCaskKeyDir keydir)
 			throws Exception {
+		scan_key_files(files, keydir, 1);
+	}
+
+	/**
+	 * Load the keys of all files into keydir, using up to the given number
+	 * of threads. Since keydir.put only keeps the newest entry for each
+	 * key, the result does not depend on the order the files are read in.
+	 */
+	static void scan_key_files(File[] files, BitCaskKeyDir keydir,
+			int threads) throws Exception {
+		scan_key_files(files, new long[files.length], keydir, threads, 0,
+				BitCaskFile.DATA_BLOCK_SIZE);
+	}
+
+	/**
+	 * Load the keys of files[i] at or after position from[i], leaving out
+	 * expired entries.
+	 * 
+	 * Entries older than expiry_time are skipped right away, since any
+	 * older entry for the same key is expired too. Tombstones and entries
+	 * that have passed their own expiry must still shadow older entries
+	 * while loading, so they are put and then swept out at the end. Data
+	 * files without a hint file are read in blocks of block_size.
+	 */
+	static void scan_key_files(File[] files, long[] from,
+			BitCaskKeyDir keydir, int threads, int expiry_time, int block_size)
+			throws Exception {
+		scan_key_files_unswept(files, from, keydir, threads, expiry_time,
+				block_size);
+		keydir.sweep(BitCaskFile.tstamp());
+	}
+
+	private static void scan_key_files_unswept(File[] files,
+			final long[] from, final BitCaskKeyDir keydir, int threads,
+			final int expiry_time, final int block_size) throws Exception {
+
+		if (threads <= 1 || files.length <= 1) {
+			for (int i = 0; i < files.length; i++) {
+				scan_key_file(files[i], from[i], keydir, expiry_time,
+						block_size);
+			}
+			return;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads,
+				files.length));
+		try {
+
+			List<Future<Void>> scans = new ArrayList<Future<Void>>();
+			for (int i = 0; i < files.length; i++) {
+				final File f = files[i];
+				final long start = from[i];
+				scans.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						scan_key_file(f, start, keydir, expiry_time,
+								block_size);
+						return null;
+					}
+				}));
+			}
+
+			for (Future<Void> scan : scans) {
+				try {
+					scan.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			}
+
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Bring a keydir loaded from a checkpoint up to date, by scanning the
+	 * files it does not cover and whatever was appended to those it does.
+	 */
+	static void replay_key_files(File[] files, Map<Integer, Long> covered,
+			BitCaskKeyDir keydir, int threads) throws Exception {
+		replay_key_files(files, covered, keydir, threads, 0,
+				BitCaskFile.DATA_BLOCK_SIZE);
+	}
+
+	static void replay_key_files(File[] files, Map<Integer, Long> covered,
+			BitCaskKeyDir keydir, int threads, int expiry_time, int block_size)
+			throws Exception {
 
+		List<File> replay = new ArrayList<File>();
+		List<Long> from = new ArrayList<Long>();
 		for (File f : files) {
+			Long size = covered.get(BitCaskFile.tstamp(f));
+			if (size == null || f.length() > size) {
+				replay.add(f);
+				from.add(size == null ? 0L : size);
+			}
+		}
+
+		long[] starts = new long[from.size()];
+		for (int i = 0; i < starts.length; i++) {
+			starts[i] = from.get(i);
+		}
+
+		scan_key_files(replay.toArray(new File[replay.size()]), starts, keydir,
+				threads, expiry_time, block_size);
+	}
+
+	/** Load the keys of entries at or after position from */
+	private static void scan_key_file(File f, final long from,
+			final BitCaskKeyDir keydir, final int expiry_time, int block_size)
+			throws Exception {
+
+		final BitCaskFile file = BitCaskFile.open(f);
+		try {
 
-			final BitCaskFile file = BitCaskFile.open(f);
+			final BitCaskFile.Expiries expiries = file.read_expiries();
 
-			file.fold_keys(new KeyIter<Void>() {
+			file.fold_key_views(new KeyViewIter<Void>() {
 				@Override
-				public Void each(ByteString key, int tstamp, long entryPos,
-						int entrySize, Void acc) throws Exception {
+				public Void each(byte[] buf, int key_off, int key_len,
+						int tstamp, long entryPos, int entrySize, Void acc)
+						throws Exception {
 
-					keydir.put(key, new BitCaskEntry(file.file_id, tstamp,
-							entryPos, entrySize));
+					if (entryPos < from) {
+						return null;
+					}
+
+					if (tstamp < expiry_time) {
+						keydir.put_dead(new BitCaskEntry(file.file_id, tstamp,
+								entryPos, entrySize));
+						return null;
+					}
+
+					int expiry = expiries == null ? 0 : expiries.get(entryPos);
+					if (file.has_value(entryPos, key_len, entrySize, TOMBSTONE)) {
+						expiry = BitCaskEntry.DELETED;
+					}
+
+					keydir.put(buf, key_off, key_len, new BitCaskEntry(
+							file.file_id, tstamp, entryPos, entrySize, expiry));
 
 					return null;
 				}
-			}, null);
-			
+			}, null, block_size);
+
+		} finally {
 			file.close();
 		}
 	}
 
+	/**
+	 * Merge all sealed data files, i.e. all but the active write file.
+	 * Entries still referenced from the keydir are copied to new data and
+	 * hint files, and the old files are deleted. This may be run on a
+	 * background thread while reads and writes continue.
+	 */
+	public void merge() throws IOException {
+		merge(mergeable_files());
+	}
+
+	/** Merge the given sealed data files */
+	void merge(File[] files) throws IOException {
+		if (files.length == 0) {
+			return;
+		}
+
+		new BitCaskMerge(dirname, keydir, opts).merge(files);
+
+		for (File f : files) {
+			read_files.evict(f);
+		}
+	}
+
+	/**
+	 * The files an automatic merge should merge now, oldest first
+	 * (needs_merge in the Erlang bitcask). Unless some file has reached
+	 * frag_merge_trigger or dead_bytes_merge_trigger, there are none.
+	 * Otherwise these are the files past frag_threshold or
+	 * dead_bytes_threshold, or smaller than small_file_threshold(), up to
+	 * max_merge_size bytes in all (but at least one file).
+	 */
+	File[] merge_candidates() {
+		File[] files = mergeable_files();
+
+		boolean triggered = false;
+		for (File f : files) {
+			FileStats stats = keydir.fstats(BitCaskFile.tstamp(f));
+			if (stats != null
+					&& (stats.fragmentation() >= opts.frag_merge_trigger || stats
+							.dead_bytes() >= opts.dead_bytes_merge_trigger)) {
+				triggered = true;
+				break;
+			}
+		}
+
+		if (!triggered) {
+			return new File[0];
+		}
+
+		List<File> result = new ArrayList<File>();
+		long size = 0;
+		for (int i = files.length - 1; i >= 0; i--) {
+			File f = files[i];
+			FileStats stats = keydir.fstats(BitCaskFile.tstamp(f));
+			long length = f.length();
+			boolean include = length < opts.small_file_threshold()
+					|| (stats != null && (stats.fragmentation() >= opts.frag_threshold || stats
+							.dead_bytes() >= opts.dead_bytes_threshold));
+
+			if (include) {
+				if (!result.isEmpty() && size + length > opts.max_merge_size) {
+					break;
+				}
+				result.add(f);
+				size += length;
+			}
+		}
+
+		return result.toArray(new File[result.size()]);
+	}
+
+	/**
+	 * Sealed files that have not been written to within the current second.
+	 * Merged entries keep their timestamp, so this guarantees that any
+	 * write racing with the merge is strictly newer than the merged copy.
+	 */
+	File[] mergeable_files() {
+		File[] files = readable_files();
+		long now = BitCaskFile.tstamp();
+
+		int n = 0;
+		for (File f : files) {
+			if (f.lastModified() / 1000 < now) {
+				files[n++] = f;
+			}
+		}
+
+		return Arrays.copyOf(files, n);
+	}
+
 	public void put(String key, String value) throws IOException {
 		put(ByteString.copyFromUtf8(key), ByteString.copyFromUtf8(value));
 	}
@@ -253,25 +1348,179 @@ public class BitCask {
 		return val.toStringUtf8();
 	}
 
+	/**
+	 * Fold over the live entries. The fold sees the bitcask as it was when
+	 * it started, from a {@link KeyDirSnapshot}; writes may continue
+	 * meanwhile.
+	 */
 	public <T> T fold(final KeyValueIter<T> entryIter, T acc) throws IOException {
 
-		final int expiry_time = opts.expiry_time();
-		EntryIter<T> iter = new EntryIter<T>() {
+		FoldState state = open_snapshot();
+		try {
+
+			for (BitCaskFile file : state.files) {
+				acc = file.fold_live(live_entries(entryIter, state.snapshot,
+						file.file_id), acc, opts.scan_block_size);
+			}
+
+			return acc;
+
+		} finally {
+			state.close();
+		}
+	}
+
+	/**
+	 * Fold over the data files in parallel on executor. Each file is folded
+	 * into its own accumulator from {@link Combiner#zero()}, so iter must
+	 * be safe to call from several threads at once, and the accumulators
+	 * are then combined.
+	 */
+	public <T> T fold(KeyValueIter<T> entryIter, Combiner<T> combiner,
+			ExecutorService executor) throws IOException {
+
+		FoldState state = open_snapshot();
+
+		List<Future<T>> folds = new ArrayList<Future<T>>();
+		try {
+
+			for (final BitCaskFile file : state.files) {
+				final LiveEntryIter<T> iter = live_entries(entryIter,
+						state.snapshot, file.file_id);
+				final T zero = combiner.zero();
+				folds.add(executor.submit(new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						return file.fold_live(iter, zero, opts.scan_block_size);
+					}
+				}));
+			}
+
+			T acc = combiner.zero();
+			for (Future<T> fold : folds) {
+				try {
+					acc = combiner.combine(acc, fold.get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					} else if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					} else if (e.getCause() instanceof Error) {
+						throw (Error) e.getCause();
+					}
+					throw new IOException(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+
+			return acc;
+
+		} finally {
+			for (Future<T> fold : folds) {
+				fold.cancel(true);
+			}
+			state.close();
+		}
+	}
+
+	/**
+	 * Iterate lazily over the live entries, file by file; the same entries
+	 * as {@link #fold(KeyValueIter, Object)} sees. The iterator must be
+	 * closed unless it is run to the end.
+	 */
+	public BitCaskIterator entries() throws IOException {
+		FoldState state = open_snapshot();
+		final KeyDirSnapshot snapshot = state.snapshot;
 
+		final KeyValueIter<Map.Entry<ByteString, ByteString>> entry = new KeyValueIter<Map.Entry<ByteString, ByteString>>() {
 			@Override
-			public T each(ByteString key, ByteString value, int tstamp,
-					long entryPos, int entrySize, T acc) {
+			public Map.Entry<ByteString, ByteString> each(ByteString key,
+					ByteString value, Map.Entry<ByteString, ByteString> acc) {
+				return new AbstractMap.SimpleImmutableEntry<ByteString, ByteString>(
+						key, value);
+			}
+		};
 
-				
+		return new BitCaskIterator(state.files, opts.scan_block_size, snapshot) {
+			@Override
+			LiveEntryIter<Map.Entry<ByteString, ByteString>> live_entries(
+					BitCaskFile file) {
+				return BitCask.this.live_entries(entry, snapshot, file.file_id);
+			}
+		};
+	}
+
+	/** A keydir snapshot, and the data files open to read what it refers to */
+	private static class FoldState {
+		final KeyDirSnapshot snapshot;
+		final BitCaskFile[] files;
+
+		FoldState(KeyDirSnapshot snapshot, BitCaskFile[] files) {
+			this.snapshot = snapshot;
+			this.files = files;
+		}
+
+		void close() {
+			close_files(files);
+			snapshot.close();
+		}
+	}
+
+	/**
+	 * Take a snapshot, and then open the data files. Files are opened after
+	 * the snapshot, so that they cover every entry it refers to; merges do
+	 * not delete files in between.
+	 */
+	private FoldState open_snapshot() throws IOException {
+		BitCaskKeyDir keydir = this.keydir;
+		if (keydir == null) {
+			throw new IOException("closed");
+		}
+
+		Lock in_use = keydir.files_in_use();
+		in_use.lock();
+		try {
+			KeyDirSnapshot snapshot = keydir.snapshot();
+			try {
+				return new FoldState(snapshot,
+						open_files(list_data_files(null, null)));
+			} catch (IOException e) {
+				snapshot.close();
+				throw e;
+			}
+		} finally {
+			in_use.unlock();
+		}
+	}
+
+	/**
+	 * Wrap iter so that it only sees the entries of data file file_id that
+	 * are live, i.e. those that snapshot points at.
+	 */
+	private <T> LiveEntryIter<T> live_entries(final KeyValueIter<T> entryIter,
+			final KeyDirSnapshot snapshot, final int file_id) {
+
+		final int expiry_time = opts.expiry_time(snapshot.tstamp);
+		final int now = snapshot.tstamp;
+		return new LiveEntryIter<T>() {
+
+			@Override
+			boolean is_live(ByteString key, int tstamp, long entryPos) {
 				if (tstamp < expiry_time) {
-					return acc;
-				}
-				
-				BitCaskEntry ent = keydir.get(key);
-				if (entryPos != ent.offset) {
-					return acc;
+					return false;
 				}
 
+				BitCaskEntry ent = snapshot.get(key);
+				return ent != null && ent.file_id == file_id
+						&& ent.offset == entryPos && !ent.is_expired(now);
+			}
+
+			@Override
+			public T each(ByteString key, ByteString value, int tstamp,
+					long entryPos, int entrySize, T acc) {
+
 				if (value.equals(TOMBSTONE)) {
 					return acc;
 				}
@@ -279,24 +1528,67 @@ public class BitCask {
 				return entryIter.each(key, value, acc);
 			}
 		};
+	}
 
-		BitCaskFile[] files = open_fold_files();
-		if (files != null) {
-			for (int i = 0; i < files.length; i++) {
-				acc = files[i].fold(iter, acc);
-			}
+	/**
+	 * Fold over the live keys and their keydir entries (time stamp, size
+	 * and location), from memory only; no data file is read. Expired keys
+	 * are skipped. Writes may continue meanwhile: the fold is weakly
+	 * consistent, seeing every key that is live throughout the fold, with
+	 * its entry as of some time during the fold.
+	 */
+	public <T> T fold_keys(final KeyDirIter<T> iter, T acc) throws IOException {
+		BitCaskKeyDir keydir = this.keydir;
+		if (keydir == null) {
+			throw new IOException("closed");
 		}
 
-		return acc;
+		final int expiry_time = opts.expiry_time();
+		final int now = BitCaskFile.tstamp();
+		try {
+			return keydir.fold(new KeyDirIter<T>() {
+				@Override
+				public T each(ByteString key, BitCaskEntry ent, T acc)
+						throws Exception {
+					if (ent.tstamp < expiry_time || ent.is_expired(now)) {
+						return acc;
+					}
+					return iter.each(key, ent, acc);
+				}
+			}, acc);
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
 	}
 
-	private BitCaskFile[] open_fold_files() {
-		// TODO: retries ?
-		File[] files = list_data_files(null, null);
-		return open_files(files);
+	/** The live keys, from memory only; see {@link #fold_keys(KeyDirIter, Object)} */
+	public List<ByteString> keys() throws IOException {
+		return fold_keys(new KeyDirIter<List<ByteString>>() {
+			@Override
+			public List<ByteString> each(ByteString key, BitCaskEntry ent,
+					List<ByteString> acc) {
+				acc.add(key);
+				return acc;
+			}
+		}, new ArrayList<ByteString>());
+	}
+
+	private static void close_files(BitCaskFile[] files) {
+		for (BitCaskFile f : files) {
+			try {
+				f.close();
+			} catch (IOException e) {
+				// only read from
+			}
+		}
 	}
 
-	BitCaskFile[] open_files(File[] files) {
+	/** Open files; if one cannot be opened, the others are closed again */
+	BitCaskFile[] open_files(File[] files) throws IOException {
 		BitCaskFile[] out = new BitCaskFile[files.length];
 
 		for (int i = 0; i < out.length; i++) {
@@ -304,15 +1596,8 @@ public class BitCask {
 			try {
 				out[i] = BitCaskFile.open(files[i]);
 			} catch (IOException e) {
-
-				for (int j = 0; j < i; j++) {
-					try {
-						out[j].close();
-					} catch (IOException e1) {
-					}
-				}
-
-				return null;
+				close_files(Arrays.copyOf(out, i));
+				throw e;
 			}
 		}
 
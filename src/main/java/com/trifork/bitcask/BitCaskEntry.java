@@ -24,12 +24,31 @@ public class BitCaskEntry {
 	public final int file_id;
 	public final long offset;
 	public final int total_sz;
+	/** second at which the entry expires, or 0 if it does not */
+	public final int expiry;
+
+	/**
+	 * Expiry of tombstones loaded from disk. They are put into the keydir
+	 * so that they shadow older entries for their key while loading, and
+	 * then swept out with the expired entries.
+	 */
+	static final int DELETED = 1;
 
 	public BitCaskEntry(int file_id, int ts, long offset, int total_sz) {
+		this(file_id, ts, offset, total_sz, 0);
+	}
+
+	public BitCaskEntry(int file_id, int ts, long offset, int total_sz,
+			int expiry) {
 		this.file_id = file_id;
 		this.tstamp = ts;
 		this.offset = offset;
 		this.total_sz = total_sz;
+		this.expiry = expiry;
+	}
+
+	boolean is_expired(int now) {
+		return expiry != 0 && expiry <= now;
 	}
 
 	boolean is_newer_than(BitCaskEntry old) {
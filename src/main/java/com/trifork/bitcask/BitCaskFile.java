@@ -22,33 +22,92 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.protobuf.ByteString;
+import com.trifork.bitcask.BitCaskOptions.SyncStrategy;
 
 public class BitCaskFile {
 
 	static final BitCaskFile FRESH_FILE = new BitCaskFile();
+
+	/** Checksum implementation used for entries */
+	public static Checksum.Factory checksums = JdkCRC32.FACTORY;
 	
 	public enum WriteCheck {
 		WRAP, FRESH, OK
 	}
 
 	// 4+4+2+4
-	private static final int HEADER_SIZE = 14;
+	static final int HEADER_SIZE = 14;
 
 	// 4+2+4+8
 	private static final int HINT_HEADER_SIZE = 18;
 
+	private static final int HINT_BLOCK_SIZE = 256 * 1024;
+
+	/** default block size for sequential reads of a data file */
+	static final int DATA_BLOCK_SIZE = 1024 * 1024;
+
+	/**
+	 * Tag of a value stored as it is, in a file whose values are tagged;
+	 * any other tag is the id of the codec that compressed the value. See
+	 * stored_value.
+	 */
+	private static final byte STORED = 0;
+
+	// codec:8 value_size:32
+	private static final int ENVELOPE_SIZE = 5;
+
+	private static final Codec[] codecs = new Codec[256];
+
+	static {
+		register_codec(DeflateCodec.DEFAULT);
+		register_codec(LZFCodec.DEFAULT);
+	}
+
+	/** Make values compressed by codec readable */
+	public static void register_codec(Codec codec) {
+		if (codec.id() < 1 || codec.id() > 255) {
+			throw new IllegalArgumentException("bad codec id " + codec.id());
+		}
+		codecs[codec.id()] = codec;
+	}
+
 	FileChannel wch;
 	FileChannel rch;
 
 	FileChannel wch_hint;
 
+	/** expiry file, opened when the first expiring entry is written */
+	FileChannel wch_expiry;
+	private boolean o_sync;
+
+	/** compresses the values written to this file, or null */
+	private Codec codec;
+	private int compress_min_size;
+	/** values in this file are tagged, see stored_value */
+	private boolean tagged;
+
+	/** read-only mapping of a sealed file, or null */
+	private volatile ByteBuffer mapped;
+
 	private AtomicLong write_offset;
+
+	/** end of the last completed write; writes to a file must not overlap */
+	private volatile long written_offset;
+
+	/** group commit state */
+	private final Object sync_lock = new Object();
+	private long synced_offset;
+	private boolean syncing;
 	final File filename;
 	final int file_id;
 
@@ -60,6 +119,7 @@ public class BitCaskFile {
 		this.rch = rch;
 		this.wch_hint = wch_hint;
 		this.write_offset = new AtomicLong(rch.size());
+		this.written_offset = synced_offset = write_offset.get();
 	}
 	
 	public BitCaskFile() {
@@ -72,7 +132,7 @@ public class BitCaskFile {
 		byte[] header = new byte[HEADER_SIZE];
 
 		ByteBuffer h = ByteBuffer.wrap(header);
-		long read = IO.read(rch, h, offset);
+		long read = read_at(h, offset);
 		if (read != HEADER_SIZE) {
 			throw new IOException("cannot read header @ 0x"+Long.toHexString(offset));
 		}
@@ -92,12 +152,12 @@ public class BitCaskFile {
 		ByteBuffer key_val = ByteBuffer.wrap(kv);
 
 		long kv_pos = offset + HEADER_SIZE;
-		read = IO.read(rch, key_val, kv_pos);
+		read = read_at(key_val, kv_pos);
 		if (read != key_val_size) {
 			throw new IOException("cannot read key+value @ 0x"+Long.toHexString(offset));
 		}
 
-		CRC32 crc = new CRC32();
+		Checksum crc = checksums.create();
 		crc.reset();
 		crc.update(header, 4, HEADER_SIZE - 4);
 		crc.update(kv);
@@ -106,17 +166,305 @@ public class BitCaskFile {
 			throw new IOException("Mismatching CRC code");
 		}
 
+		ByteString value = ByteString.copyFrom(kv, key_len, val_len);
+		if (tagged) {
+			value = ByteString.copyFrom(decode(value.asReadOnlyByteBuffer()));
+		}
+
 		ByteString[] result = new ByteString[] {
 				ByteString.copyFrom(kv, 0, key_len),
-				ByteString.copyFrom(kv, key_len, val_len)
+				value
 		};
 		
 		return result;
 	}
 	
+	/**
+	 * Read the entry at offset with a single read, check it against key and
+	 * its CRC, and return the value as a read-only buffer. For mapped files
+	 * the buffer is a view of the mapping, so nothing is copied.
+	 */
+	ByteBuffer read_value(long offset, int length, ByteString key) throws IOException {
+		return value_at(read_range(offset, length), 0, offset, length, key);
+	}
+
+	/**
+	 * Read length bytes at offset with a single read, or as a view of the
+	 * mapping if it covers them.
+	 */
+	ByteBuffer read_range(long offset, int length) throws IOException {
+		ByteBuffer m = mapped;
+		if (m != null && offset + length <= m.capacity()) {
+			ByteBuffer range = m.duplicate();
+			range.limit((int) offset + length);
+			range.position((int) offset);
+			return range.slice();
+		}
+
+		ByteBuffer range = ByteBuffer.allocate(length);
+		if (IO.read(rch, range, offset) != length) {
+			throw new IOException("cannot read entry @ 0x"+Long.toHexString(offset));
+		}
+		range.clear();
+		return range;
+	}
+
+	/**
+	 * The value of the entry of the given length at pos in range, which was
+	 * read from offset, checked against key and its CRC.
+	 */
+	ByteBuffer value_at(ByteBuffer range, int pos, long offset, int length,
+			ByteString key) throws IOException {
+		ByteBuffer entry = range.duplicate();
+		entry.limit(pos + length);
+		entry.position(pos);
+		entry = entry.slice();
+
+		int key_len = check_entry(entry, offset, key);
+		entry.position(HEADER_SIZE + key_len);
+		ByteBuffer value = entry.slice();
+		if (tagged) {
+			value = decode(value);
+		}
+		return value.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Read the value of the entry at offset into dst, starting at its
+	 * position, which is advanced past the value. The header and key are
+	 * read and checked first, so only the value has to fit in dst, and an
+	 * uncompressed value is read straight into it. Returns the value size.
+	 * If this throws, the position of dst is unchanged, but a value that
+	 * failed its CRC check may have been written past it.
+	 * 
+	 * @throws BufferOverflowException if the value does not fit in dst 
+	 */
+	int read_value(long offset, int length, ByteString key, ByteBuffer dst) throws IOException {
+
+		int tag = tagged ? 1 : 0;
+		ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE + key.size() + tag);
+		if (length < head.capacity() || read_at(head, offset) != head.capacity()) {
+			throw new IOException("cannot read entry @ 0x"+Long.toHexString(offset));
+		}
+		head.clear();
+
+		int key_len = head.getChar(8);
+		int val_len = head.getInt(10);
+		if (length != HEADER_SIZE + key_len + val_len) {
+			throw new IOException("bad entry size @ 0x"+Long.toHexString(offset));
+		}
+		ByteBuffer key_buf = head.duplicate();
+		key_buf.position(HEADER_SIZE);
+		key_buf.limit(HEADER_SIZE + key.size());
+		if (key_len != key.size() || !key_buf.equals(key.asReadOnlyByteBuffer())) {
+			throw new IOException("key mismatch @ 0x"+Long.toHexString(offset));
+		}
+
+		if (tagged && head.get(HEADER_SIZE + key_len) != STORED) {
+			// compressed values are decoded from a buffer of their own anyway
+			ByteBuffer value = read_value(offset, length, key);
+			int size = value.remaining();
+			if (dst.remaining() < size) {
+				throw new BufferOverflowException();
+			}
+			dst.put(value);
+			return size;
+		}
+
+		int size = val_len - tag;
+		if (dst.remaining() < size) {
+			throw new BufferOverflowException();
+		}
+		ByteBuffer value = dst.duplicate();
+		value.limit(value.position() + size);
+		if (read_at(value, offset + head.capacity()) != size) {
+			throw new IOException("cannot read entry @ 0x"+Long.toHexString(offset));
+		}
+		value.position(dst.position());
+
+		Checksum crc = checksums.create();
+		head.position(4);
+		crc.update(head);
+		crc.update(value);
+		if (crc.getValue() != head.getInt(0)) {
+			throw new IOException("Mismatching CRC code");
+		}
+
+		dst.position(dst.position() + size);
+		return size;
+	}
+
+	/**
+	 * Use the codec of opts (if any) for the values written to this file,
+	 * which must be new. A file written with a codec has a codec file next
+	 * to it, telling readers that its values are tagged.
+	 */
+	void compress_with(BitCaskOptions opts) throws IOException {
+		this.codec = opts.codec;
+		this.compress_min_size = opts.compress_min_size;
+		if (codec != null && !tagged) {
+			codec_filename(filename).createNewFile();
+			tagged = true;
+		}
+	}
+
+	/**
+	 * The value as it is stored in this file. Files written without a codec
+	 * hold values as they are, as the Erlang bitcask does. In files written
+	 * with one, each value starts with a tag: the codec's id, followed by
+	 * the value size and the compressed value, if that saves at least an
+	 * eighth of it; or STORED, followed by the value itself. Small values
+	 * (and so tombstones) are never compressed.
+	 */
+	private ByteString stored_value(ByteString value) {
+		if (!tagged) {
+			return value;
+		}
+
+		int size = value.size();
+		if (size >= compress_min_size && size >= 8 * ENVELOPE_SIZE) {
+			byte[] stored = new byte[size - size / 8];
+			int n = codec.compress(value.toByteArray(), 0, size, stored,
+					ENVELOPE_SIZE);
+			if (n >= 0) {
+				ByteBuffer envelope = ByteBuffer.wrap(stored);
+				envelope.put(0, (byte) codec.id());
+				envelope.putInt(1, size);
+				return ByteString.copyFrom(stored, 0, ENVELOPE_SIZE + n);
+			}
+		}
+
+		byte[] stored = new byte[1 + size];
+		stored[0] = STORED;
+		value.copyTo(stored, 1);
+		return ByteString.copyFrom(stored);
+	}
+
+	/** True if the tagged value stored holds a compressed one */
+	static boolean is_compressed(ByteString stored) {
+		return stored.size() > 0 && stored.byteAt(0) != STORED;
+	}
+
+	/** The value in a tagged one, see stored_value */
+	static ByteBuffer decode(ByteBuffer stored) throws IOException {
+		int pos = stored.position();
+		int len = stored.remaining();
+		if (len > 0 && stored.get(pos) == STORED) {
+			ByteBuffer value = stored.duplicate();
+			value.position(pos + 1);
+			return value.slice();
+		}
+		if (len < ENVELOPE_SIZE) {
+			throw new IOException("bad compressed value");
+		}
+
+		Codec codec = codecs[stored.get(pos) & 0xff];
+		if (codec == null) {
+			throw new IOException("no codec " + (stored.get(pos) & 0xff));
+		}
+
+		byte[] src = new byte[len - ENVELOPE_SIZE];
+		ByteBuffer data = stored.duplicate();
+		data.position(pos + ENVELOPE_SIZE);
+		data.get(src);
+
+		byte[] value = new byte[stored.getInt(pos + 1)];
+		codec.decompress(src, 0, src.length, value);
+		return ByteBuffer.wrap(value);
+	}
+
+	/** Verify sizes, key and CRC of the entry in buf; return the key size */
+	private static int check_entry(ByteBuffer buf, long offset, ByteString key)
+			throws IOException {
+		int crc32 = buf.getInt(0);
+		int key_len = buf.getChar(8);
+		int val_len = buf.getInt(10);
+
+		if (buf.limit() != HEADER_SIZE + key_len + val_len) {
+			throw new IOException("bad entry size @ 0x"+Long.toHexString(offset));
+		}
+
+		ByteBuffer data = buf.duplicate();
+		data.position(4);
+
+		Checksum crc = checksums.create();
+		crc.update(data);
+		if (crc.getValue() != crc32) {
+			throw new IOException("Mismatching CRC code");
+		}
+
+		data.position(HEADER_SIZE);
+		data.limit(HEADER_SIZE + key_len);
+		if (!data.equals(key.asReadOnlyByteBuffer())) {
+			throw new IOException("key mismatch @ 0x"+Long.toHexString(offset));
+		}
+
+		return key_len;
+	}
+
+	/** Read into dst at position, from the mapping if it covers the range */
+	private long read_at(ByteBuffer dst, long position) throws IOException {
+		ByteBuffer m = mapped;
+		int len = dst.remaining();
+		if (m != null && position + len <= m.capacity()) {
+			ByteBuffer src = m.duplicate();
+			src.position((int) position);
+			src.limit((int) position + len);
+			dst.put(src);
+			return len;
+		}
+
+		return IO.read(rch, dst, position);
+	}
+
+	/**
+	 * Map the first size bytes of this file for reading. Only done for
+	 * sealed files; reads beyond the mapped range still use the channel.
+	 */
+	synchronized void map(long size) throws IOException {
+		if (mapped == null && rch != null) {
+			mapped = rch.map(MapMode.READ_ONLY, 0, size);
+		}
+	}
+
+	/** Number of bytes currently mapped */
+	long mapped_size() {
+		ByteBuffer m = mapped;
+		return m == null ? 0 : m.capacity();
+	}
+
+	/** Current size of the file */
+	long size() {
+		return write_offset.get();
+	}
+
 	public BitCaskEntry write(ByteString key, ByteString value) throws IOException {
+		return write(key, value, tstamp());
+	}
+
+	/** write entry with an explicit timestamp (used when merging) */
+	BitCaskEntry write(ByteString key, ByteString value, int tstamp) throws IOException {
+		return write(key, value, tstamp, 0);
+	}
+
+	/**
+	 * Write an entry that expires at the given second (0 for never). Data
+	 * and hint files have no room for that, so the expiry goes into a
+	 * separate expiry file next to them, which the Erlang bitcask ignores.
+	 */
+	BitCaskEntry write(ByteString key, ByteString value, int tstamp, int expiry)
+			throws IOException {
+		return write_stored(key, stored_value(value), tstamp, expiry);
+	}
+
+	/**
+	 * Write an entry whose value is already as stored in this file, e.g. as
+	 * read by an {@link EntryReader} of another tagged file; so merges copy
+	 * compressed values as they are.
+	 */
+	BitCaskEntry write_stored(ByteString key, ByteString value, int tstamp,
+			int expiry) throws IOException {
 
-		int tstamp = tstamp();
 		int key_size = key.size();
 		int value_size = value.size();
 
@@ -130,7 +478,154 @@ public class BitCaskFile {
 				entry_size);
 		IO.write_fully(wch_hint, hfe);
 
-		return new BitCaskEntry(file_id, tstamp, entry_pos, entry_size);
+		if (expiry != 0) {
+			write_expiry(entry_pos, expiry);
+		}
+
+		written_offset = entry_pos + entry_size;
+
+		return new BitCaskEntry(file_id, tstamp, entry_pos, entry_size, expiry);
+	}
+
+	/**
+	 * Write entries from..to-1 of the batch with one gathering write to the
+	 * data file and one to the hint file.
+	 */
+	BitCaskEntry[] write(WriteBatch batch, int from, int to) throws IOException {
+
+		int tstamp = tstamp();
+		int n = to - from;
+
+		ByteBuffer[] vec = new ByteBuffer[3 * n];
+		ByteBuffer[] hvec = new ByteBuffer[2 * n];
+		BitCaskEntry[] entries = new BitCaskEntry[n];
+
+		long entry_pos = write_offset.get();
+		for (int i = 0; i < n; i++) {
+			ByteString key = batch.keys.get(from + i);
+			ByteString value = stored_value(batch.values.get(from + i));
+			int key_size = key.size();
+			int value_size = value.size();
+			int entry_size = HEADER_SIZE + key_size + value_size;
+
+			System.arraycopy(file_entry(key, value, tstamp, key_size,
+					value_size), 0, vec, 3 * i, 3);
+			System.arraycopy(hint_file_entry(key, tstamp, entry_pos,
+					entry_size), 0, hvec, 2 * i, 2);
+
+			entries[i] = new BitCaskEntry(file_id, tstamp, entry_pos, entry_size);
+			entry_pos += entry_size;
+		}
+
+		write_offset.set(entry_pos);
+		IO.write_fully(wch, vec);
+		IO.write_fully(wch_hint, hvec);
+
+		written_offset = entry_pos;
+
+		return entries;
+	}
+
+	// offset:64, expiry:32
+	private static final int EXPIRY_ENTRY_SIZE = 12;
+
+	private void write_expiry(long entry_pos, int expiry) throws IOException {
+		if (wch_expiry == null) {
+			File expiry_file = expiry_filename(filename);
+			wch_expiry = o_sync ? new RandomAccessFile(expiry_file, "rwd")
+					.getChannel() : new FileOutputStream(expiry_file, true)
+					.getChannel();
+		}
+
+		ByteBuffer e = ByteBuffer.allocate(EXPIRY_ENTRY_SIZE);
+		e.putLong(0, entry_pos);
+		e.putInt(8, expiry);
+		IO.write_fully(wch_expiry, new ByteBuffer[] { e });
+	}
+
+	/** Expiry of the entries in a file that have one, by entry offset */
+	static class Expiries {
+		private final long[] offsets;
+		private final int[] expiries;
+
+		Expiries(long[] offsets, int[] expiries) {
+			this.offsets = offsets;
+			this.expiries = expiries;
+		}
+
+		/** Expiry of the entry at offset, or 0 */
+		int get(long offset) {
+			int i = Arrays.binarySearch(offsets, offset);
+			return i < 0 ? 0 : expiries[i];
+		}
+	}
+
+	/** Read the expiry file, or return null if there is none */
+	Expiries read_expiries() throws IOException {
+		File expiry_file = expiry_filename(filename);
+		if (!expiry_file.exists()) {
+			return null;
+		}
+
+		FileInputStream fi = new FileInputStream(expiry_file);
+		try {
+			FileChannel ch = fi.getChannel();
+			// a torn last entry is ignored
+			int n = (int) (ch.size() / EXPIRY_ENTRY_SIZE);
+			ByteBuffer buf = ByteBuffer.allocate(n * EXPIRY_ENTRY_SIZE);
+			IO.read(ch, buf, 0);
+
+			long[] offsets = new long[n];
+			int[] expiries = new int[n];
+			for (int i = 0; i < n; i++) {
+				offsets[i] = buf.getLong(i * EXPIRY_ENTRY_SIZE);
+				expiries[i] = buf.getInt(i * EXPIRY_ENTRY_SIZE + 8);
+			}
+			return new Expiries(offsets, expiries);
+		} finally {
+			fi.close();
+		}
+	}
+
+	/** Size of the data file entry for key and value */
+	static int entry_size(ByteString key, ByteString value) {
+		return entry_size(key.size(), value.size());
+	}
+
+	static int entry_size(int key_len, int value_len) {
+		return HEADER_SIZE + key_len + value_len;
+	}
+
+	/**
+	 * Size of the entry for key and value when written to this file, tag
+	 * included. A value that gets compressed takes less, as compression
+	 * must save at least an eighth of it.
+	 */
+	int stored_entry_size(ByteString key, ByteString value) {
+		return entry_size(key.size(), tagged ? 1 + value.size() : value.size());
+	}
+
+	/**
+	 * True if the entry of entry_size bytes at entry_pos, whose key is
+	 * key_len bytes, holds the given value (not compressed). The crc is not
+	 * checked.
+	 */
+	boolean has_value(long entry_pos, int key_len, int entry_size,
+			ByteString value) throws IOException {
+		int tag_size = tagged ? 1 : 0;
+		if (entry_size != entry_size(key_len, tag_size + value.size())) {
+			return false;
+		}
+
+		ByteBuffer v = ByteBuffer.allocate(tag_size + value.size());
+		if (read_at(v, entry_pos + HEADER_SIZE + key_len) != v.capacity()) {
+			return false;
+		}
+		v.flip();
+		if (tagged && v.get() != STORED) {
+			return false;
+		}
+		return v.equals(value.asReadOnlyByteBuffer());
 	}
 
 	private ByteBuffer[] file_entry(ByteString key, ByteString value, int tstamp,
@@ -145,7 +640,7 @@ public class BitCaskFile {
 		h.putShort(8, (short) key_size);
 		h.putInt(10, value_size);
 
-		CRC32 crc = new CRC32();
+		Checksum crc = checksums.create();
 		crc.update(header, 4, 10);
 		crc.update(key);
 		crc.update(value);
@@ -192,7 +687,9 @@ public class BitCaskFile {
 		
 		FileChannel rch = new RandomAccessFile(filename, "r").getChannel();
 
-		return new BitCaskFile(tstamp, filename, null, null, rch);
+		BitCaskFile file = new BitCaskFile(tstamp, filename, null, null, rch);
+		file.tagged = codec_filename(filename).exists();
+		return file;
 	}
 
 	/** Create a new bitcask file in named directory */
@@ -200,8 +697,25 @@ public class BitCaskFile {
 		return create(dirname, tstamp());
 	}
 	
+	/**
+	 * Create a new bitcask file in named directory, honoring the sync
+	 * strategy and compressing values as configured
+	 */
+	static BitCaskFile create(File dirname, BitCaskOptions opts) throws IOException {
+		BitCaskFile file = create(dirname, tstamp(),
+				opts.sync_strategy == SyncStrategy.O_SYNC);
+		file.compress_with(opts);
+		return file;
+	}
+
 	/** Create a new bitcask file in named directory */
 	static BitCaskFile create(File dirname, int tstamp) throws IOException {
+		return create(dirname, tstamp, false);
+	}
+
+	/** Create a new bitcask file in named directory; with o_sync every
+	 * write goes straight to stable storage */
+	static BitCaskFile create(File dirname, int tstamp, boolean o_sync) throws IOException {
 		ensuredir(dirname);
 
 		boolean created = false;
@@ -215,63 +729,130 @@ public class BitCaskFile {
 			}
 		}
 
-		FileChannel wch = new FileOutputStream(filename, true).getChannel();
-		FileChannel wch_hint = new FileOutputStream(hint_filename(filename),
-				true).getChannel();
+		FileChannel wch;
+		FileChannel wch_hint;
+		if (o_sync) {
+			wch = new RandomAccessFile(filename, "rwd").getChannel();
+			wch_hint = new RandomAccessFile(hint_filename(filename), "rwd")
+					.getChannel();
+		} else {
+			wch = new FileOutputStream(filename, true).getChannel();
+			wch_hint = new FileOutputStream(hint_filename(filename), true)
+					.getChannel();
+		}
 
 		FileChannel rch = new RandomAccessFile(filename, "r").getChannel();
 
-		return new BitCaskFile(tstamp, filename, wch, wch_hint, rch);
-	}
+		// left behind if a file with this id was deleted by the Erlang merge
+		expiry_filename(filename).delete();
+		codec_filename(filename).delete();
 
-	/** Fold over all entries in this bitcask file */
-	public <T> T fold(EntryIter<T> iter, T acc) throws IOException {
+		BitCaskFile file = new BitCaskFile(tstamp, filename, wch, wch_hint, rch);
+		file.o_sync = o_sync;
+		return file;
+	}
 
-		CRC32 crc = new CRC32();
+	/** Force everything written so far to stable storage */
+	void sync() throws IOException {
+		sync_to(written_offset);
+	}
 
-		byte[] header = new byte[HEADER_SIZE];
-		long pos = 0;
-		while (pos < write_offset.get()) {
-			ByteBuffer h = ByteBuffer.wrap(header);
-			long read = IO.read(rch, h, pos);
-			if (read != HEADER_SIZE) {
-				return acc;
+	/**
+	 * Group commit: return once everything up to position is on stable
+	 * storage. Only one thread forces the file at a time; threads arriving
+	 * meanwhile wait, and the next force covers all of their writes.
+	 */
+	void sync_to(long position) throws IOException {
+
+		synchronized (sync_lock) {
+			while (synced_offset < position && syncing) {
+				try {
+					sync_lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
 			}
 
-			h.rewind();
-			int crc32 = h.getInt();
-			int tstamp = h.getInt();
-			int key_len = h.getChar();
-			int val_len = h.getInt();
+			if (synced_offset >= position) {
+				return;
+			}
 
-			byte[] kv = new byte[key_len + val_len];
-			ByteBuffer key_val = ByteBuffer.wrap(kv);
+			syncing = true;
+		}
 
-			long kv_pos = pos + HEADER_SIZE;
-			read = IO.read(rch, key_val, kv_pos);
-			if (read != (key_len + val_len)) {
-				return acc;
+		long target = written_offset;
+		boolean synced = false;
+		try {
+			FileChannel ch = wch;
+			FileChannel ch_hint = wch_hint;
+			FileChannel ch_expiry = wch_expiry;
+			if (ch != null) {
+				ch.force(false);
+			}
+			if (ch_hint != null) {
+				ch_hint.force(false);
+			}
+			if (ch_expiry != null) {
+				ch_expiry.force(false);
 			}
+			synced = true;
+		} finally {
+			synchronized (sync_lock) {
+				if (synced) {
+					synced_offset = Math.max(synced_offset, target);
+				}
+				syncing = false;
+				sync_lock.notifyAll();
+			}
+		}
+	}
 
-			crc.reset();
-			crc.update(header, 4, HEADER_SIZE - 4);
-			crc.update(kv);
+	/** Fold over all entries in this bitcask file */
+	public <T> T fold(EntryIter<T> iter, T acc) throws IOException {
+		return fold(iter, acc, DATA_BLOCK_SIZE);
+	}
 
-			if (crc.getValue() != crc32) {
-				throw new IOException("Mismatching CRC code");
-			}
+	/**
+	 * Fold over all entries in this bitcask file, reading it in blocks of
+	 * block_size bytes. Stops at a truncated entry at the end of the file.
+	 */
+	public <T> T fold(EntryIter<T> iter, T acc, int block_size)
+			throws IOException {
 
-			int entry_length = HEADER_SIZE + key_len + val_len;
-			acc = iter.each(ByteString.copyFrom(kv, 0, key_len), 
-							ByteString.copyFrom(kv, key_len, val_len), tstamp, pos, entry_length, acc);
-			
-			pos += entry_length;
+		EntryReader in = entries(block_size);
+		while (in.next()) {
+			acc = iter.each(in.key(), in.value(), in.tstamp(), in.entry_pos(),
+					in.entry_size(), acc);
 		}
 
 		return acc;
 
 	}
 
+	/**
+	 * Fold over the live entries in this bitcask file, as told by
+	 * {@link LiveEntryIter#is_live}; only their values are decompressed.
+	 */
+	<T> T fold_live(LiveEntryIter<T> iter, T acc, int block_size)
+			throws IOException {
+
+		EntryReader in = entries(block_size);
+		while (in.next()) {
+			if (iter.is_live(in.key(), in.tstamp(), in.entry_pos())) {
+				acc = iter.each(in.key(), in.value(), in.tstamp(),
+						in.entry_pos(), in.entry_size(), acc);
+			}
+		}
+
+		return acc;
+	}
+
+	/** Read the entries of this bitcask file one at a time */
+	EntryReader entries(int block_size) {
+		return new EntryReader(rch, write_offset.get(), block_size, tagged);
+	}
+
 	/** return true if this bitcask file has a hint file */
 	public boolean hasHintfile() {
 		return hint_filename(filename).canRead();
@@ -286,75 +867,125 @@ public class BitCaskFile {
 		}
 	}
 
+	/** Fold key views (use hint file if it exists) */
+	public <T> T fold_key_views(KeyViewIter<T> iter, T acc) throws Exception {
+		return fold_key_views(iter, acc, DATA_BLOCK_SIZE);
+	}
+
+	/**
+	 * Fold key views (use hint file if it exists, else read the data file
+	 * in blocks of block_size)
+	 */
+	public <T> T fold_key_views(KeyViewIter<T> iter, T acc, int block_size)
+			throws Exception {
+		if (hasHintfile()) {
+			return fold_key_views_hintfile(iter, acc);
+		} else {
+			return fold_key_views_datafile(iter, acc, block_size);
+		}
+	}
+
 	/** Fold keys by reading through the hintfile 
 	 * @throws Exception */
-	public <T> T fold_keys_hintfile(KeyIter<T> iter, T acc) throws Exception {
+	public <T> T fold_keys_hintfile(final KeyIter<T> iter, T acc) throws Exception {
+		return fold_key_views_hintfile(new KeyViewIter<T>() {
+			@Override
+			public T each(byte[] buf, int key_off, int key_len, int tstamp,
+					long entry_pos, int entry_size, T acc) throws Exception {
+				return iter.each(ByteString.copyFrom(buf, key_off, key_len),
+						tstamp, entry_pos, entry_size, acc);
+			}
+		}, acc);
+	}
+
+	/**
+	 * Fold key views by reading through the hintfile, in blocks of
+	 * HINT_BLOCK_SIZE; keys are passed as views into the block.
+	 */
+	public <T> T fold_key_views_hintfile(KeyViewIter<T> iter, T acc) throws Exception {
 
 		FileInputStream fi;
 		FileChannel ch = (fi = new FileInputStream(hint_filename(filename)))
 				.getChannel();
 
 		try {
-			byte[] header = new byte[HINT_HEADER_SIZE];
-			while (true) {
-				ByteBuffer h = ByteBuffer.wrap(header);
-				long read = ch.read(h);
-				if (read != HINT_HEADER_SIZE) {
-					return acc;
-				}
+			BlockReader in = new BlockReader(ch, 0, ch.size(), HINT_BLOCK_SIZE);
+			while (in.fill(HINT_HEADER_SIZE)) {
+				ByteBuffer h = in.buffer();
+				int pos = h.position();
 
-				h.rewind();
-				int tstamp = h.getInt();
-				int key_len = h.getChar();
-				int entry_len = h.getInt();
-				long entry_off = h.getLong();
+				int tstamp = h.getInt(pos);
+				int key_len = h.getChar(pos + 4);
+				int entry_len = h.getInt(pos + 6);
+				long entry_off = h.getLong(pos + 10);
 
-				byte[] k = new byte[key_len];
-				ByteBuffer key = ByteBuffer.wrap(k);
-
-				read = ch.read(key);
-				if (read != key_len) {
+				if (!in.fill(HINT_HEADER_SIZE + key_len)) {
 					return acc;
 				}
 
-				acc = iter.each(ByteString.copyFrom(k), tstamp, entry_off, entry_len, acc);
+				h = in.buffer();
+				pos = h.position();
+				h.position(pos + HINT_HEADER_SIZE + key_len);
+
+				acc = iter.each(h.array(), h.arrayOffset() + pos
+						+ HINT_HEADER_SIZE, key_len, tstamp, entry_off,
+						entry_len, acc);
 			}
+			return acc;
 		} finally {
 			fi.close();
 		}
 	}
 
 	/** Fold keys by reading through the data file */
-	public <T> T fold_keys_datafile(KeyIter<T> iter, T acc) throws Exception {
-
-		byte[] header = new byte[HEADER_SIZE];
-		long pos = 0;
-		while (true) {
-			ByteBuffer h = ByteBuffer.wrap(header);
-			long read = IO.read(rch, h, pos);
-			if (read != HEADER_SIZE) {
-				return acc;
+	public <T> T fold_keys_datafile(final KeyIter<T> iter, T acc) throws Exception {
+		return fold_key_views_datafile(new KeyViewIter<T>() {
+			@Override
+			public T each(byte[] buf, int key_off, int key_len, int tstamp,
+					long entry_pos, int entry_size, T acc) throws Exception {
+				return iter.each(ByteString.copyFrom(buf, key_off, key_len),
+						tstamp, entry_pos, entry_size, acc);
 			}
+		}, acc);
+	}
 
-			h.rewind();
-			h.getInt(); // skip crc32
-			int tstamp = h.getInt();
-			int key_len = h.getChar();
-			int val_len = h.getInt();
+	public <T> T fold_key_views_datafile(KeyViewIter<T> iter, T acc) throws Exception {
+		return fold_key_views_datafile(iter, acc, DATA_BLOCK_SIZE);
+	}
+
+	/**
+	 * Fold key views by reading through the data file, in blocks of
+	 * block_size; values are skipped, and keys are passed as views into
+	 * the block.
+	 */
+	public <T> T fold_key_views_datafile(KeyViewIter<T> iter, T acc,
+			int block_size) throws Exception {
+
+		BlockReader in = new BlockReader(rch, 0, rch.size(), block_size);
+		while (in.fill(HEADER_SIZE)) {
+			ByteBuffer h = in.buffer();
+			int pos = h.position();
 
-			byte[] k = new byte[key_len];
-			ByteBuffer key = ByteBuffer.wrap(k);
+			int tstamp = h.getInt(pos + 4);
+			int key_len = h.getChar(pos + 8);
+			int val_len = h.getInt(pos + 10);
 
-			read = IO.read(rch, key, pos + HEADER_SIZE);
-			if (read != key_len) {
+			long entry_pos = in.position();
+			if (!in.fill(HEADER_SIZE + key_len)) {
 				return acc;
 			}
 
+			h = in.buffer();
+			pos = h.position();
+
 			int entry_size = HEADER_SIZE + key_len + val_len;
-			acc = iter.each(ByteString.copyFrom(k), tstamp, pos, entry_size, acc);
+			acc = iter.each(h.array(), h.arrayOffset() + pos + HEADER_SIZE,
+					key_len, tstamp, entry_pos, entry_size, acc);
 
-			pos += entry_size;
+			in.skip(entry_size);
 		}
+
+		return acc;
 	}
 
 	/** Close for writing */
@@ -365,18 +996,34 @@ public class BitCaskFile {
 		}
 		if (wch_hint != null) {
 			wch_hint.close();
-			wch = null;
+			wch_hint = null;
+		}
+		if (wch_expiry != null) {
+			wch_expiry.close();
+			wch_expiry = null;
 		}
 	}
 
 	/** Close for reading and writing */
 	public synchronized void close() throws IOException {
 		close_for_writing();
+		// the mapping itself goes away when it is collected
+		mapped = null;
 		if (rch != null) {
 			rch.close();
 		}
 	}
 
+	/** Remove data file and its hint, expiry and codec files from disk */
+	static void delete(File filename) throws IOException {
+		hint_filename(filename).delete();
+		expiry_filename(filename).delete();
+		codec_filename(filename).delete();
+		if (!filename.delete() && filename.exists()) {
+			throw new IOException("cannot delete " + filename);
+		}
+	}
+
 	/** Create-if-not-exists for directory or fail */
 	static void ensuredir(File dirname) {
 		if (dirname.exists() && dirname.isDirectory())
@@ -408,11 +1055,40 @@ public class BitCaskFile {
 		}
 	}
 
+	/** Name of the expiry file that goes with the data file filename */
+	private static File expiry_filename(File filename) {
+		File parent = filename.getParentFile();
+		String name = filename.getName();
+
+		if (name.endsWith(".data")) {
+			return new File(parent, name.substring(0, name.length() - 5)
+					+ ".expiry");
+		} else {
+			return new File(parent, name + ".expiry");
+		}
+	}
+
+	/**
+	 * Name of the codec file that goes with the data file filename; it is
+	 * empty, and only there if the data file was written with a codec
+	 */
+	private static File codec_filename(File filename) {
+		File parent = filename.getParentFile();
+		String name = filename.getName();
+
+		if (name.endsWith(".data")) {
+			return new File(parent, name.substring(0, name.length() - 5)
+					+ ".codec");
+		} else {
+			return new File(parent, name + ".codec");
+		}
+	}
+
 	public WriteCheck check_write(ByteString key, ByteString value, long maxFileSize) {
 		if (file_id == -1)
 			return WriteCheck.FRESH;
 
-		int size = HEADER_SIZE + key.size() + value.size();
+		int size = stored_entry_size(key, value);
 		
 		if (write_offset.get() + size > maxFileSize) {
 			return WriteCheck.WRAP;
@@ -0,0 +1,127 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Lazy iterator over the live entries of a bitcask, see
+ * {@link BitCask#entries()}. Data files are read one block at a time as
+ * the iterator advances, so stopping early does not read the rest.
+ *
+ * The data files are opened and the keydir snapshot taken up front, so
+ * that a merge running meanwhile cannot remove them; {@link #close()} the
+ * iterator when done with it. That happens by itself once it has been
+ * exhausted.
+ */
+public abstract class BitCaskIterator implements Iterator<Map.Entry<ByteString, ByteString>>,
+		Closeable {
+
+	final BitCaskFile[] files;
+	private final int block_size;
+	private final KeyDirSnapshot snapshot;
+
+	private int file = -1;
+	private EntryReader in;
+	/** returns the entry, for the entries it finds live */
+	private LiveEntryIter<Map.Entry<ByteString, ByteString>> live;
+	private Map.Entry<ByteString, ByteString> next;
+	private boolean closed;
+
+	BitCaskIterator(BitCaskFile[] files, int block_size,
+			KeyDirSnapshot snapshot) {
+		this.files = files;
+		this.block_size = block_size;
+		this.snapshot = snapshot;
+	}
+
+	/** Filter for the live entries of file */
+	abstract LiveEntryIter<Map.Entry<ByteString, ByteString>> live_entries(
+			BitCaskFile file);
+
+	@Override
+	public boolean hasNext() {
+		try {
+			while (next == null && !closed) {
+				if (in != null && in.next()) {
+					// only live values are decompressed
+					if (live.is_live(in.key(), in.tstamp(), in.entry_pos())) {
+						next = live.each(in.key(), in.value(), in.tstamp(),
+								in.entry_pos(), in.entry_size(), null);
+					}
+				} else if (file + 1 < files.length) {
+					if (file >= 0) {
+						files[file].close();
+					}
+					in = files[++file].entries(block_size);
+					live = live_entries(files[file]);
+				} else {
+					close();
+				}
+			}
+		} catch (IOException e) {
+			close();
+			throw new IllegalStateException(e);
+		}
+
+		return next != null;
+	}
+
+	@Override
+	public Map.Entry<ByteString, ByteString> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		Map.Entry<ByteString, ByteString> result = next;
+		next = null;
+		return result;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/** Close the data files that are still open, and the snapshot */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		in = null;
+		snapshot.close();
+
+		for (int i = Math.max(file, 0); i < files.length; i++) {
+			try {
+				files[i].close();
+			} catch (IOException e) {
+				// only read from
+			}
+		}
+	}
+
+}
@@ -20,8 +20,16 @@ package com.trifork.bitcask;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -29,53 +37,332 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.google.protobuf.ByteString;
 
+/**
+ * The keydir maps keys to the location of their newest entry.
+ * 
+ * Lookups never block; updates use compare-and-swap on the underlying
+ * concurrent map, so that the "only replace if newer" check is atomic
+ * with respect to other writers, merging and parallel key scans.
+ *
+ * Updates also share a read lock, which {@link #snapshot()} takes
+ * exclusively for a moment, so that no update is half way when a
+ * snapshot is taken.
+ */
 public class BitCaskKeyDir {
 
-	Map<ByteString, BitCaskEntry> map = new HashMap<ByteString, BitCaskEntry>();
-	ReadWriteLock rwl = new ReentrantReadWriteLock();
+	ConcurrentMap<ByteString, BitCaskEntry> map = new ConcurrentHashMap<ByteString, BitCaskEntry>();
 	private boolean is_ready;
+	/** entries with an expiry; created on first use */
+	private volatile ExpiryWheel expiring;
+	/** per file statistics, by file id */
+	private final ConcurrentMap<Integer, FileStats> fstats = new ConcurrentHashMap<Integer, FileStats>();
+
+	private static final KeyDirSnapshot[] NO_SNAPSHOTS = new KeyDirSnapshot[0];
+	/** open snapshots; copied on write */
+	volatile KeyDirSnapshot[] snapshots = NO_SNAPSHOTS;
+	private final ReadWriteLock snapshot_lock = new ReentrantReadWriteLock();
+	private final ReadWriteLock files_lock = new ReentrantReadWriteLock();
 
 	public boolean put(ByteString key, BitCaskEntry ent) {
 
-		Lock writeLock = rwl.writeLock();
-		writeLock.lock();
+		Lock updating = snapshot_lock.readLock();
+		updating.lock();
 		try {
 
-			BitCaskEntry old = map.get(key);
-			if (old == null) {
-				map.put(key, ent);
-				return true;
-			} else if (ent.is_newer_than(old)) {
-				map.put(key, ent);
-				return true;
-			} else {
-				return false;
+			while (true) {
+
+				BitCaskEntry old = map.get(key);
+				if (old != null && !ent.is_newer_than(old)) {
+					update_fstats(null, ent, false);
+					return false;
+				}
+
+				before_change(key, old);
+				if (old == null ? map.putIfAbsent(key, ent) == null : map
+						.replace(key, old, ent)) {
+					update_fstats(old, ent, true);
+					break;
+				}
+
+				// lost a race with another writer; try again
 			}
 
 		} finally {
-			writeLock.unlock();
+			updating.unlock();
 		}
 
+		expire(key, ent);
+		return true;
 	}
-	
-	public BitCaskEntry get(ByteString key) {
-		
-		Lock readLock = rwl.readLock();
-		readLock.lock();
+
+	/** Put with a key given as a view into buf, as when loading hint files */
+	public boolean put(byte[] buf, int key_off, int key_len, BitCaskEntry ent) {
+		return put(ByteString.copyFrom(buf, key_off, key_len), ent);
+	}
+
+	/** Put a number of entries, e.g. from a write batch */
+	public void put_all(List<ByteString> keys, int from, BitCaskEntry[] ents) {
+		for (int i = 0; i < ents.length; i++) {
+			put(keys.get(from + i), ents[i]);
+		}
+	}
+
+	/**
+	 * Replace the entry for key, but only if it still points at the same
+	 * location as old_ent. Used by merge to move entries to the merged file
+	 * without undoing writes that happened while merging.
+	 */
+	public boolean replace(ByteString key, BitCaskEntry old_ent, BitCaskEntry ent) {
+
+		Lock updating = snapshot_lock.readLock();
+		updating.lock();
 		try {
-			
-			return map.get(key);
-			
+
+			while (true) {
+
+				BitCaskEntry cur = map.get(key);
+				if (cur == null || cur.file_id != old_ent.file_id
+						|| cur.offset != old_ent.offset) {
+					return false;
+				}
+
+				before_change(key, cur);
+				if (map.replace(key, cur, ent)) {
+					update_fstats(cur, ent, true);
+					break;
+				}
+
+			}
+
 		} finally {
-			readLock.unlock();
+			updating.unlock();
+		}
+
+		expire(key, ent);
+		return true;
+	}
+
+	/**
+	 * Remove the entry for key, but only if it still points at the same
+	 * location as ent.
+	 */
+	public boolean remove(ByteString key, BitCaskEntry ent) {
+
+		Lock updating = snapshot_lock.readLock();
+		updating.lock();
+		try {
+
+			while (true) {
+
+				BitCaskEntry cur = map.get(key);
+				if (cur == null || cur.file_id != ent.file_id
+						|| cur.offset != ent.offset) {
+					return false;
+				}
+
+				before_change(key, cur);
+				if (map.remove(key, cur)) {
+					update_fstats(cur, null, false);
+					return true;
+				}
+
+			}
+
+		} finally {
+			updating.unlock();
+		}
+	}
+
+	/**
+	 * Lock held while taking a snapshot and opening the data files it refers
+	 * to, so that no merge deletes them in between.
+	 */
+	Lock files_in_use() {
+		return files_lock.readLock();
+	}
+
+	/** Lock a merge holds while it deletes its input files */
+	Lock files_deletion() {
+		return files_lock.writeLock();
+	}
+
+	/**
+	 * Take a snapshot of this keydir, which must be closed after use. Until
+	 * then, updates record the entries they replace in it.
+	 */
+	public KeyDirSnapshot snapshot() {
+		Lock exclusive = snapshot_exclusion();
+		exclusive.lock();
+		try {
+			synchronized (snapshot_lock) {
+				KeyDirSnapshot snapshot = new KeyDirSnapshot(this);
+				KeyDirSnapshot[] snaps = Arrays.copyOf(snapshots,
+						snapshots.length + 1);
+				snaps[snaps.length - 1] = snapshot;
+				snapshots = snaps;
+				return snapshot;
+			}
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	void release(KeyDirSnapshot snapshot) {
+		synchronized (snapshot_lock) {
+			List<KeyDirSnapshot> snaps = new ArrayList<KeyDirSnapshot>(
+					Arrays.asList(snapshots));
+			if (snaps.remove(snapshot)) {
+				snapshots = snaps.isEmpty() ? NO_SNAPSHOTS : snaps
+						.toArray(new KeyDirSnapshot[snaps.size()]);
+			}
 		}
-		
+	}
+
+	/** Lock that keeps all updates out while a snapshot is taken */
+	Lock snapshot_exclusion() {
+		return snapshot_lock.writeLock();
+	}
+
+	/** True if there are open snapshots */
+	boolean has_snapshots() {
+		return snapshots.length > 0;
+	}
+
+	/** key is about to change from cur; let the open snapshots know */
+	void before_change(ByteString key, BitCaskEntry cur) {
+		for (KeyDirSnapshot snapshot : snapshots) {
+			snapshot.record(key, cur);
+		}
+	}
+
+	/**
+	 * Account for an update of the keydir: old (if any) is no longer live,
+	 * and ent (if any) was added to its file, as a live entry or not.
+	 */
+	void update_fstats(BitCaskEntry old, BitCaskEntry ent, boolean live) {
+		if (ent != null) {
+			stats_for(ent.file_id).added(ent.total_sz, live);
+		}
+
+		if (old != null) {
+			FileStats stats = fstats.get(old.file_id);
+			if (stats != null) {
+				stats.died(old.total_sz);
+			}
+		}
+	}
+
+	/** Account for an entry that was written but is not in the keydir */
+	void put_dead(BitCaskEntry ent) {
+		update_fstats(null, ent, false);
+	}
+
+	/** Account for a tombstone that a merge had to keep, see {@link FileStats} */
+	void put_retained(BitCaskEntry tombstone) {
+		stats_for(tombstone.file_id).retained(tombstone.total_sz);
+	}
+
+	/** Statistics of the given file, created if needed */
+	FileStats stats_for(int file_id) {
+		FileStats stats = fstats.get(file_id);
+		if (stats == null) {
+			FileStats fresh = new FileStats();
+			stats = fstats.putIfAbsent(file_id, fresh);
+			if (stats == null) {
+				stats = fresh;
+			}
+		}
+		return stats;
+	}
+
+	/** Drop the statistics of a file that has been deleted */
+	void forget(int file_id) {
+		fstats.remove(file_id);
+	}
+
+	/** Statistics of the given file, or null if none */
+	public FileStats fstats(int file_id) {
+		return fstats.get(file_id);
+	}
+
+	/** Statistics of all files, by file id */
+	public SortedMap<Integer, FileStats> fstats() {
+		return Collections.unmodifiableSortedMap(new TreeMap<Integer, FileStats>(
+				fstats));
+	}
+
+	/** Register an entry that was just put, if it expires */
+	void expire(ByteString key, BitCaskEntry ent) {
+		if (ent.expiry == 0) {
+			return;
+		}
+
+		ExpiryWheel wheel = expiring;
+		if (wheel == null) {
+			synchronized (this) {
+				if (expiring == null) {
+					expiring = new ExpiryWheel(BitCaskFile.tstamp());
+				}
+				wheel = expiring;
+			}
+		}
+
+		wheel.add(key, ent);
+	}
+
+	/** Remove entries that have expired by now; returns how many */
+	public int sweep(int now) {
+		ExpiryWheel wheel = expiring;
+		return wheel == null ? 0 : wheel.sweep(this, now);
+	}
+
+	/** True if any entry put so far had an expiry */
+	boolean has_expiring() {
+		return expiring != null;
+	}
+
+	public BitCaskEntry get(ByteString key) {
+		return map.get(key);
+	}
+
+	/** Look up each of keys; the entry is null where a key is not found */
+	public BitCaskEntry[] get_all(ByteString[] keys) {
+		BitCaskEntry[] ents = new BitCaskEntry[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			ents[i] = get(keys[i]);
+		}
+		return ents;
+	}
+
+	/**
+	 * Fold over all entries. Writes may continue meanwhile; each key that
+	 * stays in the keydir is visited once, with either its old or its new
+	 * entry. A key added during the fold may be missed; one removed and
+	 * added back may be visited twice here, as ConcurrentHashMap iterators
+	 * allow, but not by {@link OffHeapKeyDir}.
+	 */
+	public <T> T fold(KeyDirIter<T> iter, T acc) throws Exception {
+		for (Map.Entry<ByteString, BitCaskEntry> ent : map.entrySet()) {
+			acc = iter.each(ent.getKey(), ent.getValue(), acc);
+		}
+		return acc;
+	}
+
+	/** Number of keys in this keydir */
+	public int size() {
+		return map.size();
 	}
 
 	public static Map<File,BitCaskKeyDir> key_dirs = new HashMap<File, BitCaskKeyDir>();
 	public static Lock keydir_lock = new ReentrantLock();
 	
 	public static BitCaskKeyDir keydir_new(File dirname, int openTimeoutSecs) throws IOException {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.open_timeout_secs = openTimeoutSecs;
+		return keydir_new(dirname, opts);
+	}
+
+	public static BitCaskKeyDir keydir_new(File dirname, BitCaskOptions opts) throws IOException {
 		
 		File abs_name = dirname.getAbsoluteFile();
 		BitCaskKeyDir dir;
@@ -84,7 +371,7 @@ public class BitCaskKeyDir {
 			
 			dir = key_dirs.get(abs_name);
 			if (dir == null) {
-				dir = new BitCaskKeyDir();
+				dir = opts.off_heap_keydir ? new OffHeapKeyDir() : new BitCaskKeyDir();
 				key_dirs.put(abs_name, dir);
 				return dir;
 			}
@@ -94,7 +381,7 @@ public class BitCaskKeyDir {
 			keydir_lock.unlock();
 		}
 
-		if (dir.wait_for_ready(openTimeoutSecs)) {
+		if (dir.wait_for_ready(opts.open_timeout_secs)) {
 			return dir;
 		} else {
 			throw new IOException("timeout while waiting for keydir");
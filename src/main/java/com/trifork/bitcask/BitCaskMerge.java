@@ -0,0 +1,251 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+import com.google.protobuf.ByteString;
+import com.trifork.bitcask.BitCaskLock.Type;
+
+/**
+ * Merge state (mstate in the Erlang bitcask).
+ *
+ * Copies the entries of a set of sealed data files that are still
+ * referenced from the keydir into fresh data+hint files, and then removes
+ * the input files.
+ */
+class BitCaskMerge {
+
+	final File dirname;
+	final BitCaskKeyDir keydir;
+	final BitCaskOptions opts;
+
+	BitCaskLock merge_lock;
+	BitCaskFile out_file = BitCaskFile.FRESH_FILE;
+
+	/**
+	 * Data files not being merged, other than the active write file. Any
+	 * of them may hold an older value for a key deleted in the merged
+	 * files: merge output files get higher ids than the files their
+	 * entries came from, so file ids do not tell. The active write file
+	 * was created after all merged entries were written, so it cannot.
+	 */
+	final List<File> unmerged = new ArrayList<File>();
+
+	/** keys deleted or expired in the merged files, and their newest tstamp */
+	final Map<ByteString, Integer> deleted = new HashMap<ByteString, Integer>();
+
+	BitCaskMerge(File dirname, BitCaskKeyDir keydir, BitCaskOptions opts) {
+		this.dirname = dirname;
+		this.keydir = keydir;
+		this.opts = opts;
+	}
+
+	/** Merge the given (sealed) data files, and delete them afterwards */
+	void merge(File[] files) throws IOException {
+
+		merge_lock = BitCaskLock.acquire(Type.MERGE, dirname);
+		if (merge_lock == null) {
+			throw new IOException("merge already in progress in " + dirname);
+		}
+
+		try {
+
+			List<File> merging = Arrays.asList(files);
+			File writing = BitCaskLock.read_activefile(Type.WRITE, dirname);
+			for (File f : dirname.listFiles()) {
+				if (BitCask.DATA_FILE.matcher(f.getName()).matches()
+						&& !merging.contains(f) && !f.equals(writing)) {
+					unmerged.add(f);
+				}
+			}
+
+			for (File f : files) {
+				BitCaskFile in_file = BitCaskFile.open(f);
+				try {
+					merge_file(in_file);
+				} finally {
+					in_file.close();
+				}
+			}
+
+			write_tombstones();
+			close_out_file();
+
+			Lock deleting = keydir.files_deletion();
+			deleting.lock();
+			try {
+				for (File f : files) {
+					BitCaskFile.delete(f);
+					keydir.forget(BitCaskFile.tstamp(f));
+				}
+			} finally {
+				deleting.unlock();
+			}
+
+		} finally {
+			close_out_file();
+			merge_lock.release();
+		}
+	}
+
+	private void merge_file(BitCaskFile in_file) throws IOException {
+
+		int expiry_time = opts.expiry_time();
+		int now = BitCaskFile.tstamp();
+
+		EntryReader in = in_file.entries(opts.scan_block_size);
+		while (in.next()) {
+			ByteString key = in.key();
+			int tstamp = in.tstamp();
+
+			if (tstamp < expiry_time) {
+				continue;
+			}
+
+			BitCaskEntry ent = keydir.get(key);
+			if (ent == null || ent.is_expired(now)) {
+				// key is deleted or expired, see write_tombstones
+				if (!unmerged.isEmpty()) {
+					Integer newest = deleted.get(key);
+					if (newest == null || newest < tstamp) {
+						deleted.put(key, tstamp);
+					}
+				}
+				continue;
+			}
+
+			if (ent.file_id != in_file.file_id || ent.offset != in.entry_pos()) {
+				// entry is dead
+				continue;
+			}
+
+			// compressed values are copied as they are, into a tagged file
+			boolean copy = in.compressed() && opts.codec != null;
+			ByteString value = copy ? in.stored_value() : in.value();
+			BitCaskFile out = out_file(key, value);
+			BitCaskEntry new_ent = copy ? out.write_stored(key, value, tstamp,
+					ent.expiry) : out.write(key, value, tstamp, ent.expiry);
+
+			/* if the key was written while we copied it, the copy we
+			 * just made is dead and will go away with the next merge */
+			if (!keydir.replace(key, ent, new_ent)) {
+				keydir.put_dead(new_ent);
+			}
+		}
+	}
+
+	/**
+	 * An unmerged file may still hold an older value for a key deleted in
+	 * the merged files, which must not come back when the keydir is
+	 * loaded. So keep one tombstone for such keys, as new as their newest
+	 * merged entry, unless all unmerged entries are newer than that.
+	 */
+	private void write_tombstones() throws IOException {
+		if (deleted.isEmpty()) {
+			return;
+		}
+
+		int oldest = oldest_tstamp(unmerged);
+		for (Map.Entry<ByteString, Integer> ent : deleted.entrySet()) {
+			ByteString key = ent.getKey();
+			int tstamp = ent.getValue();
+			if (tstamp >= oldest) {
+				keydir.put_retained(out_file(key, BitCask.TOMBSTONE).write(
+						key, BitCask.TOMBSTONE, tstamp));
+			}
+		}
+	}
+
+	/** Oldest tstamp of the entries in files, from their hint files if any */
+	private static int oldest_tstamp(List<File> files) throws IOException {
+		int oldest = Integer.MAX_VALUE;
+		for (File f : files) {
+			BitCaskFile file;
+			try {
+				file = BitCaskFile.open(f);
+			} catch (FileNotFoundException e) {
+				// deleted by the Erlang merge meanwhile
+				continue;
+			}
+
+			try {
+				oldest = file.fold_key_views(new KeyViewIter<Integer>() {
+					@Override
+					public Integer each(byte[] buf, int key_off, int key_len,
+							int tstamp, long entry_pos, int entry_size,
+							Integer acc) {
+						return Math.min(acc, tstamp);
+					}
+				}, oldest);
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			} finally {
+				file.close();
+			}
+		}
+		return oldest;
+	}
+
+	/** Return the file to write key/value into, wrapping as needed */
+	private BitCaskFile out_file(ByteString key, ByteString value)
+			throws IOException {
+
+		switch (out_file.check_write(key, value, opts.max_file_size)) {
+		case WRAP:
+			close_out_file();
+			return new_out_file();
+
+		case FRESH:
+			return new_out_file();
+
+		case OK:
+		}
+
+		return out_file;
+	}
+
+	private BitCaskFile new_out_file() throws IOException {
+		BitCaskFile nwf = BitCaskFile.create(dirname);
+		nwf.compress_with(opts);
+		merge_lock.write_activefile(nwf);
+		out_file = nwf;
+		return nwf;
+	}
+
+	private void close_out_file() throws IOException {
+		if (out_file != BitCaskFile.FRESH_FILE) {
+			// merged entries must be durable before the input is deleted
+			out_file.sync();
+			out_file.close();
+			out_file = BitCaskFile.FRESH_FILE;
+		}
+	}
+
+}
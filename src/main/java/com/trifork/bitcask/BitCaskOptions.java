@@ -18,16 +18,114 @@
 
 package com.trifork.bitcask;
 
+import java.util.concurrent.Executor;
+
 public class BitCaskOptions {
 
+	/** When writes are forced to stable storage */
+	public static enum SyncStrategy {
+		/** leave it to the operating system */
+		NONE,
+		/** every write is synchronous (the data and hint files are opened O_DSYNC) */
+		O_SYNC,
+		/** force the active file every {@link BitCaskOptions#sync_interval_secs} */
+		SECONDS,
+		/** put returns once its entry is forced; concurrent puts share one force */
+		GROUP_COMMIT
+	}
+
 	public int expiry_secs = 0;
+	/** how often keys put with a ttl are swept from the keydir once expired */
+	public int expiry_sweep_secs = 1;
 	public long max_file_size = 1024 * 1024; /* 1mb file size */
 	public boolean read_write = false;
 	public int open_timeout_secs = 20;
+	/** number of threads reading data and hint files when opening */
+	public int open_threads = Runtime.getRuntime().availableProcessors();
+	public SyncStrategy sync_strategy = SyncStrategy.NONE;
+	public int sync_interval_secs = 1;
+
+	/** keep keys and entries outside the java heap, see {@link OffHeapKeyDir} */
+	public boolean off_heap_keydir = false;
+
+	/**
+	 * upper limit on bytes of sealed data files mapped into memory for
+	 * reading. Java cannot unmap a file; a mapping dropped when its file is
+	 * closed (e.g. evicted, or merged away) stays until it is garbage
+	 * collected. So more than this may be mapped for a while, and the disk
+	 * space of a merged file is only freed once its mapping is collected.
+	 */
+	public long max_mapped_bytes = 256 * 1024 * 1024;
+
+	/**
+	 * block size in which folds, merges and loading data files without a
+	 * hint file read through them
+	 */
+	public int scan_block_size = BitCaskFile.DATA_BLOCK_SIZE;
+	/** getAll fetches entries less than this many bytes apart with one read */
+	public int read_coalesce_gap = 4096;
+
+	/**
+	 * compress values with this codec, e.g. {@link LZFCodec#DEFAULT}; null
+	 * to store them as they are. A value is stored as it is when that
+	 * would not save at least an eighth. Data files written with a codec
+	 * have a .codec file next to them, and cannot be read by the Erlang
+	 * bitcask.
+	 */
+	public Codec codec = null;
+	/** values smaller than this are never compressed */
+	public int compress_min_size = 64;
+
+	/** upper limit on data files kept open for reading, see {@link ReadFileCache} */
+	public int max_open_files = 64;
+
+	/** write a snapshot of the keydir on close, and start from it on open */
+	public boolean keydir_checkpoint = false;
+	/** if positive, also write the keydir snapshot this often while open */
+	public int keydir_checkpoint_secs = 0;
+
+	/**
+	 * If positive (and read_write), check this often whether to merge, see
+	 * {@link BitCask#merge_candidates()}. The other merge options only
+	 * apply to these automatic merges.
+	 */
+	public int merge_check_secs = 0;
+	/** merge once a file has this percentage of dead keys */
+	public int frag_merge_trigger = 60;
+	/** merge once a file has this many dead bytes */
+	public long dead_bytes_merge_trigger = 512 * 1024 * 1024;
+	/** when merging, include files with this percentage of dead keys */
+	public int frag_threshold = 40;
+	/** when merging, include files with this many dead bytes */
+	public long dead_bytes_threshold = 128 * 1024 * 1024;
+	/**
+	 * when merging, include files smaller than this; if negative, a tenth
+	 * of max_file_size, so that only files sealed early (say, on close)
+	 * count as small
+	 */
+	public long small_file_threshold = -1;
+	/** upper limit on bytes of data files merged at a time */
+	public long max_merge_size = 256 * 1024 * 1024;
+	/** hours of the day (0-23, inclusive, local time) in which to merge */
+	public int merge_window_start = 0;
+	public int merge_window_end = 23;
+
+	/**
+	 * runs the reads of {@link BitCask#getAsync(ByteString)}; if null, a
+	 * pool of io_threads owned by the bitcask. On JDK 21+, pass a virtual
+	 * thread per task executor to not bound the reads in flight.
+	 */
+	public Executor io_executor = null;
+	public int io_threads = 16;
 
 	public int expiry_time() {
+		return expiry_time(BitCaskFile.tstamp());
+	}
+
+	/** Entries older than this had expired at time now */
+	public int expiry_time(int now) {
 		if (expiry_secs > 0) 
-			return BitCaskFile.tstamp() - expiry_secs;
+			return now - expiry_secs;
 		else
 			return 0;
 	}
@@ -35,6 +133,20 @@ public class BitCaskOptions {
 	public boolean is_read_write() {
 		return read_write;
 	}
+
+	public long small_file_threshold() {
+		return small_file_threshold < 0 ? max_file_size / 10
+				: small_file_threshold;
+	}
+
+	/** Is hour within the merge window; the window may wrap midnight */
+	public boolean in_merge_window(int hour) {
+		if (merge_window_start <= merge_window_end) {
+			return hour >= merge_window_start && hour <= merge_window_end;
+		} else {
+			return hour >= merge_window_start || hour <= merge_window_end;
+		}
+	}
 		
 	
 	
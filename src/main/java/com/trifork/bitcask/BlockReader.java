@@ -0,0 +1,106 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file sequentially in large blocks, so that records can be
+ * decoded straight out of the buffer. Records may span blocks; the
+ * buffer is refilled (and grown, for records larger than a block) as
+ * needed.
+ */
+class BlockReader {
+
+	private final FileChannel ch;
+	private final long end;
+
+	/** file position of the first byte in buf */
+	private long buf_pos;
+	private ByteBuffer buf;
+
+	BlockReader(FileChannel ch, long start, long end, int block_size) {
+		this.ch = ch;
+		this.end = end;
+		this.buf_pos = start;
+		this.buf = ByteBuffer.allocate(block_size);
+		this.buf.limit(0);
+	}
+
+	/**
+	 * Make sure that n bytes are available in {@link #buffer()} from its
+	 * position. Returns false if the file ends before that.
+	 */
+	boolean fill(int n) throws IOException {
+		if (buf.remaining() >= n) {
+			return true;
+		}
+
+		buf_pos += buf.position();
+		if (buf_pos + n > end) {
+			return false;
+		}
+
+		if (buf.capacity() < n) {
+			ByteBuffer bigger = ByteBuffer.allocate(n);
+			bigger.put(buf);
+			buf = bigger;
+		} else {
+			buf.compact();
+		}
+
+		int want = (int) Math.min(buf.remaining(), end - buf_pos - buf.position());
+		buf.limit(buf.position() + want);
+		long read = IO.read(ch, buf, buf_pos + buf.position());
+		buf.flip();
+
+		if (read != want) {
+			throw new IOException("short read @ 0x" + Long.toHexString(buf_pos));
+		}
+
+		return buf.remaining() >= n;
+	}
+
+	/** Skip n bytes from the buffer's position, which may be past its end */
+	void skip(long n) {
+		if (n <= buf.remaining()) {
+			buf.position(buf.position() + (int) n);
+		} else {
+			buf_pos = position() + n;
+			buf.clear();
+			buf.limit(0);
+		}
+	}
+
+	/**
+	 * The current block; records are decoded from its position. Only valid
+	 * until the next call to {@link #fill(int)}.
+	 */
+	ByteBuffer buffer() {
+		return buf;
+	}
+
+	/** File position of the buffer's position */
+	long position() {
+		return buf_pos + buf.position();
+	}
+
+}
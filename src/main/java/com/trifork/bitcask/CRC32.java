@@ -22,8 +22,20 @@ import java.nio.ByteBuffer;
 
 import com.google.protobuf.ByteString;
 
-/** CRC utility that can also use {@link ByteBuffer} and {@link ByteString} */
-public class CRC32 {
+/**
+ * CRC utility that can also use {@link ByteBuffer} and {@link ByteString}.
+ * 
+ * This is a pure Java table-driven implementation; {@link JdkCRC32} is
+ * used by default.
+ */
+public class CRC32 implements Checksum {
+
+	public static final Checksum.Factory FACTORY = new Checksum.Factory() {
+		@Override
+		public Checksum create() {
+			return new CRC32();
+		}
+	};
 
     /**************************************************************************
      *  Using table lookup
@@ -99,7 +111,7 @@ public class CRC32 {
 	}
 
 	public void update(ByteBuffer bb) {
-		for(int i = 0; i < bb.limit(); i++) {
+		for(int i = bb.position(); i < bb.limit(); i++) {
 			byte b = bb.get(i);
 			update(b);
 		}
@@ -0,0 +1,51 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * CRC32 (as computed by Erlang's erlang:crc32/1) over the entries in a
+ * bitcask data file. Implementations must produce identical values.
+ * 
+ * @see BitCaskFile#checksums
+ */
+public interface Checksum {
+
+	/** Creates the checksum used for reading and writing entries */
+	public interface Factory {
+		Checksum create();
+	}
+
+	void reset();
+
+	int getValue();
+
+	void update(byte[] arr);
+
+	void update(byte[] arr, int off, int len);
+
+	/** Update with the bytes between position and limit; the position is not changed */
+	void update(ByteBuffer bb);
+
+	void update(ByteString bs);
+
+}
@@ -0,0 +1,43 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.io.IOException;
+
+/**
+ * Compresses values in data files, see {@link BitCaskOptions#codec}. Each
+ * compressed value is stored with the id of its codec, so a codec must be
+ * registered with {@link BitCaskFile#register_codec(Codec)} wherever such
+ * values are read. {@link DeflateCodec} and {@link LZFCodec} always are.
+ */
+public interface Codec {
+
+	/** Stored with each value this codec compressed; 1 to 255 */
+	int id();
+
+	/**
+	 * Compress src[off, off+len) into dst from dst_off on. Returns the
+	 * compressed size, or -1 if it does not fit in the rest of dst.
+	 */
+	int compress(byte[] src, int off, int len, byte[] dst, int dst_off);
+
+	/** Decompress src[off, off+len) into dst, which is exactly the original size */
+	void decompress(byte[] src, int off, int len, byte[] dst) throws IOException;
+
+}
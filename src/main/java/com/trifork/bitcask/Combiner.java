@@ -0,0 +1,39 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+/**
+ * Accumulators for a parallel fold: each data file is folded into its own
+ * accumulator, and those are then combined into one.
+ *
+ * @see BitCask#fold(KeyValueIter, Combiner, java.util.concurrent.ExecutorService)
+ */
+public interface Combiner<T> {
+
+	/** A fresh accumulator, for one data file */
+	T zero();
+
+	/**
+	 * Combine the accumulators of two sets of data files; must be
+	 * associative. The accumulators are combined in the order of the files
+	 * (newest first) on the calling thread.
+	 */
+	T combine(T acc1, T acc2);
+
+}
@@ -0,0 +1,92 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link Codec} using raw deflate (java.util.zip, without the zlib header
+ * and checksum; the entry has a crc already). Compresses well, but is
+ * several times slower than {@link LZFCodec}.
+ */
+public class DeflateCodec implements Codec {
+
+	public static final DeflateCodec DEFAULT = new DeflateCodec(
+			Deflater.DEFAULT_COMPRESSION);
+
+	static final int ID = 1;
+
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	private final ThreadLocal<Deflater> deflaters;
+
+	/** A codec compressing at the given level, 0-9 */
+	public DeflateCodec(final int level) {
+		deflaters = new ThreadLocal<Deflater>() {
+			@Override
+			protected Deflater initialValue() {
+				return new Deflater(level, true);
+			}
+		};
+	}
+
+	@Override
+	public int id() {
+		return ID;
+	}
+
+	@Override
+	public int compress(byte[] src, int off, int len, byte[] dst, int dst_off) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(src, off, len);
+		deflater.finish();
+		int n = deflater.deflate(dst, dst_off, dst.length - dst_off);
+		return deflater.finished() ? n : -1;
+	}
+
+	@Override
+	public void decompress(byte[] src, int off, int len, byte[] dst)
+			throws IOException {
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(src, off, len);
+		try {
+			int n = inflater.inflate(dst);
+			// with dst full, the end of the stream may not have been seen yet
+			if (n == dst.length && !inflater.finished()) {
+				n += inflater.inflate(new byte[1]);
+			}
+			if (n != dst.length || !inflater.finished()) {
+				throw new IOException("bad deflated value");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		}
+	}
+
+}
@@ -18,6 +18,8 @@
 
 package com.trifork.bitcask;
 
+import java.io.IOException;
+
 import com.google.protobuf.ByteString;
 
 /** Iterator interface for key+value */
@@ -31,10 +33,11 @@ public interface EntryIter<T> {
 	 * @param entry_size Size of the entry in the data file
 	 * @param acc Accumulator for fold operations
 	 * @return accumulator for next iteration
+	 * @throws IOException 
 	 * 
 	 * @see BitCaskFile#fold(EntryIter, Object)
 	 */
 	T each(ByteString key, ByteString value, int tstamp, long entry_pos,
-			int entry_size, T acc);
+			int entry_size, T acc) throws IOException;
 
 }
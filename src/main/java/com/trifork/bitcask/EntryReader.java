@@ -0,0 +1,138 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Reads the entries of a data file one at a time, front to back, in
+ * blocks. Each entry's crc is checked as it is read.
+ */
+class EntryReader {
+
+	private final BlockReader in;
+	private final Checksum crc = BitCaskFile.checksums.create();
+	/** values are tagged, see BitCaskFile.stored_value */
+	private final boolean tagged;
+
+	private ByteString key;
+	private ByteString stored;
+	/** decoded on demand */
+	private ByteString value;
+	private int tstamp;
+	private long entry_pos;
+	private int entry_size;
+
+	EntryReader(FileChannel ch, long end, int block_size, boolean tagged) {
+		this.in = new BlockReader(ch, 0, end, block_size);
+		this.tagged = tagged;
+	}
+
+	/**
+	 * Advance to the next entry. Returns false at the end of the file, or
+	 * at a truncated entry there.
+	 */
+	boolean next() throws IOException {
+		if (!in.fill(BitCaskFile.HEADER_SIZE)) {
+			return false;
+		}
+
+		ByteBuffer h = in.buffer();
+		int pos = h.position();
+
+		int crc32 = h.getInt(pos);
+		int tstamp = h.getInt(pos + 4);
+		int key_len = h.getChar(pos + 8);
+		int val_len = h.getInt(pos + 10);
+		if (val_len < 0) {
+			throw new IOException("bad entry @ 0x"
+					+ Long.toHexString(in.position()));
+		}
+
+		long entry_pos = in.position();
+		int entry_size = BitCaskFile.HEADER_SIZE + key_len + val_len;
+		if (!in.fill(entry_size)) {
+			return false;
+		}
+
+		h = in.buffer();
+		pos = h.position();
+		byte[] buf = h.array();
+		int off = h.arrayOffset() + pos;
+
+		crc.reset();
+		crc.update(buf, off + 4, entry_size - 4);
+
+		if (crc.getValue() != crc32) {
+			throw new IOException("Mismatching CRC code");
+		}
+
+		h.position(pos + entry_size);
+
+		this.key = ByteString.copyFrom(buf, off + BitCaskFile.HEADER_SIZE,
+				key_len);
+		this.stored = ByteString.copyFrom(buf, off + BitCaskFile.HEADER_SIZE
+				+ key_len, val_len);
+		this.value = null;
+		this.tstamp = tstamp;
+		this.entry_pos = entry_pos;
+		this.entry_size = entry_size;
+		return true;
+	}
+
+	ByteString key() {
+		return key;
+	}
+
+	ByteString value() throws IOException {
+		if (value == null) {
+			value = tagged ? ByteString.copyFrom(BitCaskFile.decode(stored
+					.asReadOnlyByteBuffer())) : stored;
+		}
+		return value;
+	}
+
+	/** The value as stored in the data file, tagged or not */
+	ByteString stored_value() {
+		return stored;
+	}
+
+	boolean compressed() {
+		return tagged && BitCaskFile.is_compressed(stored);
+	}
+
+	int tstamp() {
+		return tstamp;
+	}
+
+	/** Position of the entry in the data file */
+	long entry_pos() {
+		return entry_pos;
+	}
+
+	/** Size of the entry in the data file */
+	int entry_size() {
+		return entry_size;
+	}
+
+}
@@ -0,0 +1,100 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Timing wheel of keydir entries that expire, with one slot per second.
+ * Entries expiring further ahead than the wheel is long wait in their slot
+ * for more rounds.
+ *
+ * Sweeping only removes an entry from the keydir if it is still the
+ * current entry for its key; otherwise a newer write has replaced it.
+ */
+class ExpiryWheel {
+
+	private static final int SLOTS = 4096;
+
+	private static class Expiring {
+		final ByteString key;
+		final BitCaskEntry ent;
+
+		Expiring(ByteString key, BitCaskEntry ent) {
+			this.key = key;
+			this.ent = ent;
+		}
+	}
+
+	private final Queue<Expiring>[] slots;
+
+	/** the next second to sweep */
+	private int next;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	ExpiryWheel(int now) {
+		slots = new Queue[SLOTS];
+		for (int i = 0; i < SLOTS; i++) {
+			slots[i] = new ConcurrentLinkedQueue<Expiring>();
+		}
+		next = now;
+	}
+
+	/** Synchronized with sweep, so an entry never goes into a swept slot */
+	synchronized void add(ByteString key, BitCaskEntry ent) {
+		// already due entries go in the next slot to be swept
+		int when = Math.max(ent.expiry, next);
+		slots[when & (SLOTS - 1)].add(new Expiring(key, ent));
+	}
+
+	/**
+	 * Remove all entries that have expired by now from keydir; returns the
+	 * number removed.
+	 */
+	synchronized int sweep(BitCaskKeyDir keydir, int now) {
+		int removed = 0;
+		List<Expiring> later = new ArrayList<Expiring>();
+
+		// visiting every slot once is enough to catch up
+		for (int i = 0; next <= now && i < SLOTS; i++, next++) {
+			Queue<Expiring> slot = slots[next & (SLOTS - 1)];
+
+			Expiring e;
+			while ((e = slot.poll()) != null) {
+				if (e.ent.expiry > now) {
+					later.add(e);
+				} else if (keydir.remove(e.key, e.ent)) {
+					removed += 1;
+				}
+			}
+
+			slot.addAll(later);
+			later.clear();
+		}
+
+		next = Math.max(next, now + 1);
+		return removed;
+	}
+
+}
@@ -0,0 +1,115 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live and total keys and bytes of one data file (fstats in the Erlang
+ * bitcask). An entry is live while the keydir points at it; total counts
+ * every entry in the file, including tombstones. Tombstones a merge had to
+ * keep are retained: neither live nor dead, since merging them again would
+ * free nothing.
+ *
+ * Maintained by the keydir as entries are put, replaced and removed, so
+ * the numbers are as of the last update, not a consistent snapshot.
+ */
+public class FileStats {
+
+	private final AtomicLong live_keys = new AtomicLong();
+	private final AtomicLong total_keys = new AtomicLong();
+	private final AtomicLong live_bytes = new AtomicLong();
+	private final AtomicLong total_bytes = new AtomicLong();
+	private final AtomicLong retained_keys = new AtomicLong();
+	private final AtomicLong retained_bytes = new AtomicLong();
+
+	/** An entry of the given size was added to the file */
+	void added(int bytes, boolean live) {
+		total_keys.incrementAndGet();
+		total_bytes.addAndGet(bytes);
+		if (live) {
+			live_keys.incrementAndGet();
+			live_bytes.addAndGet(bytes);
+		}
+	}
+
+	/** A tombstone of the given size, kept by a merge, was added to the file */
+	void retained(int bytes) {
+		total_keys.incrementAndGet();
+		total_bytes.addAndGet(bytes);
+		retained_keys.incrementAndGet();
+		retained_bytes.addAndGet(bytes);
+	}
+
+	/** A live entry of the given size was replaced or removed */
+	void died(int bytes) {
+		live_keys.decrementAndGet();
+		live_bytes.addAndGet(-bytes);
+	}
+
+	/** Set the totals, e.g. as recorded in a keydir checkpoint */
+	void set_totals(long keys, long bytes) {
+		total_keys.set(keys);
+		total_bytes.set(bytes);
+	}
+
+	public long live_keys() {
+		return live_keys.get();
+	}
+
+	public long total_keys() {
+		return total_keys.get();
+	}
+
+	public long live_bytes() {
+		return live_bytes.get();
+	}
+
+	public long total_bytes() {
+		return total_bytes.get();
+	}
+
+	public long retained_keys() {
+		return retained_keys.get();
+	}
+
+	public long retained_bytes() {
+		return retained_bytes.get();
+	}
+
+	/** Bytes a merge of this file would reclaim */
+	public long dead_bytes() {
+		return total_bytes() - live_bytes() - retained_bytes();
+	}
+
+	/** Percentage of the keys in this file that are dead */
+	public int fragmentation() {
+		long total = total_keys();
+		return total == 0 ? 0
+				: (int) ((total - live_keys() - retained_keys()) * 100 / total);
+	}
+
+	@Override
+	public String toString() {
+		return "live_keys=" + live_keys() + " total_keys=" + total_keys()
+				+ " live_bytes=" + live_bytes() + " total_bytes="
+				+ total_bytes() + " retained_keys=" + retained_keys();
+	}
+
+}
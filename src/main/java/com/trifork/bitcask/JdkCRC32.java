@@ -0,0 +1,121 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * {@link Checksum} backed by {@link java.util.zip.CRC32}, which recent JVMs
+ * compile to the CPU's CRC instructions. This is the default.
+ * 
+ * Direct buffers are handed to CRC32.update(ByteBuffer) when the JVM has it
+ * (Java 8 and later); otherwise, and for {@link ByteString}s, the bytes are
+ * checksummed in chunks through a per-thread scratch array.
+ */
+public class JdkCRC32 implements Checksum {
+
+	public static final Checksum.Factory FACTORY = new Checksum.Factory() {
+		@Override
+		public Checksum create() {
+			return new JdkCRC32();
+		}
+	};
+
+	private static final int CHUNK_SIZE = 4096;
+
+	private static final Method UPDATE_BYTEBUFFER = update_bytebuffer();
+
+	private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[CHUNK_SIZE];
+		}
+	};
+
+	private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+
+	@Override
+	public void reset() {
+		crc.reset();
+	}
+
+	@Override
+	public int getValue() {
+		return (int) crc.getValue();
+	}
+
+	@Override
+	public void update(byte[] arr) {
+		crc.update(arr, 0, arr.length);
+	}
+
+	@Override
+	public void update(byte[] arr, int off, int len) {
+		crc.update(arr, off, len);
+	}
+
+	@Override
+	public void update(ByteBuffer bb) {
+		if (bb.hasArray()) {
+			crc.update(bb.array(), bb.arrayOffset() + bb.position(),
+					bb.remaining());
+			return;
+		}
+
+		ByteBuffer src = bb.duplicate();
+		if (UPDATE_BYTEBUFFER != null) {
+			try {
+				UPDATE_BYTEBUFFER.invoke(crc, src);
+				return;
+			} catch (Exception e) {
+				// fall back to copying
+			}
+		}
+
+		byte[] buf = SCRATCH.get();
+		while (src.hasRemaining()) {
+			int len = Math.min(buf.length, src.remaining());
+			src.get(buf, 0, len);
+			crc.update(buf, 0, len);
+		}
+	}
+
+	@Override
+	public void update(ByteString bs) {
+		byte[] buf = SCRATCH.get();
+		int size = bs.size();
+		for (int off = 0; off < size; off += buf.length) {
+			int len = Math.min(buf.length, size - off);
+			bs.copyTo(buf, off, 0, len);
+			crc.update(buf, 0, len);
+		}
+	}
+
+	private static Method update_bytebuffer() {
+		try {
+			return java.util.zip.CRC32.class.getMethod("update", ByteBuffer.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,277 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Snapshot of a keydir, so that open does not have to read every hint
+ * file. The snapshot records the size of each data file it covers; on
+ * load, only files it does not cover and the tails of files that grew
+ * since need to be scanned.
+ *
+ * <pre>
+ * magic:32 version:32 nfiles:32 [file_id:32 size:64 total_keys:64 total_bytes:64]*
+ * [1:8 key_len:16 file_id:32 tstamp:32 offset:64 total_sz:32 expiry:32 key]* 0:8
+ * crc:32
+ * </pre>
+ *
+ * The snapshot is only used if the checksum matches and every covered
+ * file is still there, at least as large as recorded. The total keys and
+ * bytes of each covered file are kept too, since the entries alone only
+ * tell which are live.
+ *
+ * A merge deletes its
+ * input files, so snapshots taken before a merge are discarded.
+ */
+class KeyDirCheckpoint {
+
+	static final String FILENAME = "bitcask.keydir";
+
+	private static final int MAGIC = 0x42434b44; /* BCKD */
+	private static final int VERSION = 3;
+	private static final int BLOCK_SIZE = 256 * 1024;
+
+	/**
+	 * Write a snapshot of the entries of keydir that lie within the covered
+	 * files, which map file ids to their size. All writes below those sizes
+	 * must already be in the keydir. totals maps the same file ids to their
+	 * total keys and bytes at those sizes.
+	 */
+	static void write(File dirname, final Map<Integer, Long> covered,
+			Map<Integer, long[]> totals, BitCaskKeyDir keydir,
+			final int expiry_time) throws Exception {
+
+		File tmp = new File(dirname, FILENAME + ".tmp");
+		FileOutputStream fo = new FileOutputStream(tmp);
+		boolean ok = false;
+		try {
+
+			Checksum crc = BitCaskFile.checksums.create();
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new ChecksumOutputStream(fo, crc),
+							BLOCK_SIZE));
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(covered.size());
+			for (Map.Entry<Integer, Long> file : covered.entrySet()) {
+				out.writeInt(file.getKey());
+				out.writeLong(file.getValue());
+
+				long[] total = totals.get(file.getKey());
+				out.writeLong(total[0]);
+				out.writeLong(total[1]);
+			}
+
+			final int now = BitCaskFile.tstamp();
+			final byte[] key_buf = new byte[0x10000];
+			keydir.fold(new KeyDirIter<Void>() {
+				@Override
+				public Void each(ByteString key, BitCaskEntry ent, Void acc)
+						throws IOException {
+
+					// newer than the snapshot; replayed on load
+					Long size = covered.get(ent.file_id);
+					if (size == null || ent.offset + ent.total_sz > size) {
+						return null;
+					}
+
+					/* once expired, an entry stays expired; and older entries
+					 * for the key are never replayed, as they are covered */
+					if (ent.tstamp < expiry_time || ent.is_expired(now)) {
+						return null;
+					}
+
+					out.writeByte(1);
+					out.writeShort(key.size());
+					out.writeInt(ent.file_id);
+					out.writeInt(ent.tstamp);
+					out.writeLong(ent.offset);
+					out.writeInt(ent.total_sz);
+					out.writeInt(ent.expiry);
+					key.copyTo(key_buf, 0);
+					out.write(key_buf, 0, key.size());
+
+					return null;
+				}
+			}, null);
+
+			out.writeByte(0);
+			out.flush();
+
+			fo.write(ByteBuffer.allocate(4).putInt(0, crc.getValue()).array());
+			fo.getFD().sync();
+			ok = true;
+
+		} finally {
+			fo.close();
+			if (!ok) {
+				tmp.delete();
+			}
+		}
+
+		File target = new File(dirname, FILENAME);
+		if (!tmp.renameTo(target)) {
+			target.delete();
+			if (!tmp.renameTo(target)) {
+				throw new IOException("cannot rename " + tmp + " to " + target);
+			}
+		}
+	}
+
+	/**
+	 * Load the snapshot in dirname into keydir. Returns the covered files,
+	 * mapping file ids to the size covered, or null (leaving keydir
+	 * untouched) if there is no valid snapshot.
+	 */
+	static Map<Integer, Long> load(File dirname, BitCaskKeyDir keydir)
+			throws IOException {
+
+		File file = new File(dirname, FILENAME);
+		if (!file.exists() || !verify(file)) {
+			return null;
+		}
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), BLOCK_SIZE));
+		try {
+
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+
+			Map<Integer, Long> covered = new HashMap<Integer, Long>();
+			Map<Integer, long[]> totals = new HashMap<Integer, long[]>();
+			int nfiles = in.readInt();
+			for (int i = 0; i < nfiles; i++) {
+				int file_id = in.readInt();
+				long size = in.readLong();
+				long total_keys = in.readLong();
+				long total_bytes = in.readLong();
+
+				File data_file = BitCaskFile.mk_filename(dirname, file_id);
+				if (!data_file.exists() || data_file.length() < size) {
+					// merged away (or lost its tail)
+					return null;
+				}
+
+				covered.put(file_id, size);
+				totals.put(file_id, new long[] { total_keys, total_bytes });
+			}
+
+			byte[] key_buf = new byte[0x10000];
+			while (in.readByte() != 0) {
+				int key_len = in.readUnsignedShort();
+				int file_id = in.readInt();
+				int tstamp = in.readInt();
+				long offset = in.readLong();
+				int total_sz = in.readInt();
+				int expiry = in.readInt();
+				in.readFully(key_buf, 0, key_len);
+
+				keydir.put(key_buf, 0, key_len, new BitCaskEntry(file_id,
+						tstamp, offset, total_sz, expiry));
+			}
+
+			for (Map.Entry<Integer, long[]> total : totals.entrySet()) {
+				keydir.stats_for(total.getKey()).set_totals(
+						total.getValue()[0], total.getValue()[1]);
+			}
+
+			return covered;
+
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Check the trailing crc against the rest of the file */
+	private static boolean verify(File file) throws IOException {
+		FileChannel ch = new RandomAccessFile(file, "r").getChannel();
+		try {
+
+			long end = ch.size() - 4;
+			if (end < 12) {
+				return false;
+			}
+
+			Checksum crc = BitCaskFile.checksums.create();
+			ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE);
+			long pos = 0;
+			while (pos < end) {
+				buf.clear();
+				buf.limit((int) Math.min(BLOCK_SIZE, end - pos));
+				long read = IO.read(ch, buf, pos);
+				if (read == 0) {
+					return false;
+				}
+				pos += read;
+				buf.flip();
+				crc.update(buf);
+			}
+
+			ByteBuffer expected = ByteBuffer.allocate(4);
+			IO.read(ch, expected, end);
+			return expected.getInt(0) == crc.getValue();
+
+		} finally {
+			ch.close();
+		}
+	}
+
+	private static class ChecksumOutputStream extends FilterOutputStream {
+
+		private final Checksum crc;
+
+		ChecksumOutputStream(OutputStream out, Checksum crc) {
+			super(out);
+			this.crc = crc;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			crc.update(new byte[] { (byte) b });
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			crc.update(b, off, len);
+			out.write(b, off, len);
+		}
+	}
+
+}
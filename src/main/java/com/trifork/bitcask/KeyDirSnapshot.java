@@ -0,0 +1,84 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Point in time view of a keydir, as used by folds.
+ *
+ * Rather than copying the keydir, the snapshot keeps the entry each key
+ * had when the snapshot was taken, for the keys that have been changed
+ * since (like the pending table of the Erlang keydir, but turned around
+ * so that writers keep updating the keydir itself). Writers record the
+ * entry they are about to replace before they replace it, so the memory
+ * used grows with the number of keys changed while the snapshot is open.
+ *
+ * Close snapshots when done; see {@link BitCaskKeyDir#snapshot()}.
+ */
+public class KeyDirSnapshot implements Closeable {
+
+	/** recorded for keys that were absent */
+	private static final BitCaskEntry ABSENT = new BitCaskEntry(-1, 0, -1, 0);
+
+	private final BitCaskKeyDir keydir;
+	private final ConcurrentMap<ByteString, BitCaskEntry> before = new ConcurrentHashMap<ByteString, BitCaskEntry>();
+
+	/** time stamp of the snapshot */
+	public final int tstamp = BitCaskFile.tstamp();
+
+	KeyDirSnapshot(BitCaskKeyDir keydir) {
+		this.keydir = keydir;
+	}
+
+	/** key is about to change from cur (null if absent) */
+	void record(ByteString key, BitCaskEntry cur) {
+		// only the first change counts; its cur is the entry as of the snapshot
+		before.putIfAbsent(key, cur == null ? ABSENT : cur);
+	}
+
+	/** The entry for key as of the snapshot, or null */
+	public BitCaskEntry get(ByteString key) {
+
+		/* look in the keydir first: any change that happened before has
+		 * been recorded by then */
+		BitCaskEntry cur = keydir.get(key);
+		BitCaskEntry old = before.get(key);
+		if (old == null) {
+			return cur;
+		}
+
+		return old == ABSENT ? null : old;
+	}
+
+	/** Number of keys changed since the snapshot was taken */
+	public int changed() {
+		return before.size();
+	}
+
+	@Override
+	public void close() {
+		keydir.release(this);
+	}
+
+}
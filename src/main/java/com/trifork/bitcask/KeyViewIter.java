@@ -0,0 +1,44 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+/**
+ * Iterator for folding over keys, without creating a ByteString for
+ * each key. The key is a view into a shared buffer, which is only valid
+ * for the duration of the call.
+ */
+public interface KeyViewIter<T> {
+
+	/**
+	 * @param buf Buffer holding the entry's key
+	 * @param key_off Offset of the key in buf
+	 * @param key_len Length of the key
+	 * @param tstamp Time stamp of the entry
+	 * @param entry_pos Position of this entry in the data file
+	 * @param entry_size Size of the entry in the data file
+	 * @param acc Accumulator for fold operations
+	 * @return accumulator for next iteration
+	 * @throws Exception 
+	 * 
+	 * @see BitCaskFile#fold_key_views(KeyViewIter, Object)
+	 */
+	T each(byte[] buf, int key_off, int key_len, int tstamp, long entry_pos,
+			int entry_size, T acc) throws Exception;
+
+}
@@ -0,0 +1,185 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.io.IOException;
+
+/**
+ * {@link Codec} in the LZF format of liblzf: a fast LZ77 variant that
+ * finds matches through a hash of the next three bytes, and has no
+ * entropy coding. Compresses less than {@link DeflateCodec}, but at a
+ * fraction of the cost, which is what matters for reads.
+ *
+ * <pre>
+ * 000LLLLL [L+1 literal bytes]
+ * LLLOOOOO oooooooo          match of L+2 bytes at distance O:o+1
+ * 111OOOOO LLLLLLLL oooooooo match of L+9 bytes
+ * </pre>
+ */
+public class LZFCodec implements Codec {
+
+	public static final LZFCodec DEFAULT = new LZFCodec();
+
+	static final int ID = 2;
+
+	private static final int HASH_BITS = 13;
+	private static final int MAX_LITERAL = 32;
+	private static final int MAX_DISTANCE = 1 << 13;
+	private static final int MAX_MATCH = 7 + 255 + 2;
+
+	/**
+	 * Last position of each hash, per thread. Not cleared between values:
+	 * a stale position is checked against the input like any other.
+	 */
+	private static final ThreadLocal<int[]> TABLES = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1 << HASH_BITS];
+		}
+	};
+
+	@Override
+	public int id() {
+		return ID;
+	}
+
+	@Override
+	public int compress(byte[] src, int off, int len, byte[] dst, int dst_off) {
+		int[] table = TABLES.get();
+		int end = off + len;
+		int ip = off;
+		int literals = off;
+		int op = dst_off;
+
+		while (ip < end - 2) {
+			int h = hash(src, ip);
+			int ref = table[h];
+			table[h] = ip;
+
+			int distance = ip - ref - 1;
+			if (ref < off || distance < 0 || distance >= MAX_DISTANCE
+					|| src[ref] != src[ip] || src[ref + 1] != src[ip + 1]
+					|| src[ref + 2] != src[ip + 2]) {
+				ip++;
+				continue;
+			}
+
+			int max = Math.min(end - ip, MAX_MATCH);
+			int n = 3;
+			while (n < max && src[ref + n] == src[ip + n]) {
+				n++;
+			}
+
+			op = literals(src, literals, ip, dst, op);
+			if (op < 0 || op + 3 > dst.length) {
+				return -1;
+			}
+
+			int l = n - 2;
+			if (l < 7) {
+				dst[op++] = (byte) ((l << 5) + (distance >> 8));
+			} else {
+				dst[op++] = (byte) ((7 << 5) + (distance >> 8));
+				dst[op++] = (byte) (l - 7);
+			}
+			dst[op++] = (byte) distance;
+
+			ip += n;
+			literals = ip;
+		}
+
+		op = literals(src, literals, end, dst, op);
+		return op < 0 ? -1 : op - dst_off;
+	}
+
+	/** Copy src[from, to) to dst at op as literal runs; returns the new op */
+	private static int literals(byte[] src, int from, int to, byte[] dst,
+			int op) {
+		while (from < to) {
+			int n = Math.min(MAX_LITERAL, to - from);
+			if (op + 1 + n > dst.length) {
+				return -1;
+			}
+			dst[op++] = (byte) (n - 1);
+			System.arraycopy(src, from, dst, op, n);
+			op += n;
+			from += n;
+		}
+		return op;
+	}
+
+	private static int hash(byte[] b, int i) {
+		int v = (b[i] & 0xff) << 16 | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff);
+		return (v * -1640531535) >>> (32 - HASH_BITS);
+	}
+
+	@Override
+	public void decompress(byte[] src, int off, int len, byte[] dst)
+			throws IOException {
+		int end = off + len;
+		int ip = off;
+		int op = 0;
+
+		while (ip < end) {
+			int ctrl = src[ip++] & 0xff;
+
+			if (ctrl < MAX_LITERAL) {
+				int n = ctrl + 1;
+				if (ip + n > end || op + n > dst.length) {
+					throw new IOException("bad lzf value");
+				}
+				System.arraycopy(src, ip, dst, op, n);
+				ip += n;
+				op += n;
+				continue;
+			}
+
+			int n = ctrl >> 5;
+			if (n == 7) {
+				if (ip >= end) {
+					throw new IOException("bad lzf value");
+				}
+				n += src[ip++] & 0xff;
+			}
+			if (ip >= end) {
+				throw new IOException("bad lzf value");
+			}
+			int ref = op - ((ctrl & 0x1f) << 8) - (src[ip++] & 0xff) - 1;
+			n += 2;
+			if (ref < 0 || op + n > dst.length) {
+				throw new IOException("bad lzf value");
+			}
+
+			if (op - ref >= n) {
+				System.arraycopy(dst, ref, dst, op, n);
+				op += n;
+			} else {
+				// byte by byte, as the match overlaps what it produces
+				for (int i = 0; i < n; i++) {
+					dst[op++] = dst[ref++];
+				}
+			}
+		}
+
+		if (op != dst.length) {
+			throw new IOException("bad lzf value");
+		}
+	}
+
+}
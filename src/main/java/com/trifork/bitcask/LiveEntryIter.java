@@ -0,0 +1,34 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * An {@link EntryIter} for the live entries of a data file only. Folds
+ * ask {@link #is_live} first, so that dead values are not decompressed.
+ * 
+ * @see BitCaskFile#fold_live(LiveEntryIter, Object, int)
+ */
+abstract class LiveEntryIter<T> implements EntryIter<T> {
+
+	/** True if the entry at entry_pos is the live one for key */
+	abstract boolean is_live(ByteString key, int tstamp, long entry_pos);
+
+}
@@ -0,0 +1,564 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Keydir that keeps keys and entries in direct (off-heap) slabs.
+ *
+ * Each key is stored as one record in a slab, followed by its key bytes.
+ * The records are found through an open-addressing (linear probing) hash
+ * table made of two primitive arrays, so the number of objects on the heap
+ * does not depend on the number of keys.
+ * 
+ * Unlike {@link BitCaskKeyDir}, access is guarded by a read/write lock.
+ */
+public class OffHeapKeyDir extends BitCaskKeyDir {
+
+	// slab record: key_len:16, file_id:32, tstamp:32, offset:64, total_sz:32,
+	// expiry:32, key
+	private static final int REC_KEY_LEN = 0;
+	private static final int REC_FILE_ID = 2;
+	private static final int REC_TSTAMP = 6;
+	private static final int REC_OFFSET = 10;
+	private static final int REC_TOTAL_SZ = 18;
+	private static final int REC_EXPIRY = 22;
+	private static final int REC_KEY = 26;
+
+	/** file_id of records whose key has been removed */
+	private static final int DEAD = -1;
+
+	/** 1mb slabs; always room for the largest record (64k key) */
+	private static final int SLAB_SHIFT = 20;
+	private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+	private static final int SLAB_MASK = SLAB_SIZE - 1;
+
+	/** number of records copied out per read lock in fold */
+	private static final int FOLD_BATCH = 1024;
+
+	private final ReadWriteLock rwl = new ReentrantReadWriteLock();
+
+	private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	/** bytes used in each full slab; the last slab is filled up to slab_pos */
+	private final ArrayList<Integer> slab_used = new ArrayList<Integer>();
+	private int slab_pos = SLAB_SIZE;
+
+	/** slot -&gt; 1 + slab address of the record; 0 means empty */
+	private long[] addrs;
+	/** slot -&gt; hash of the key, to avoid comparing keys on collisions */
+	private int[] hashes;
+	private int count;
+	private int threshold;
+
+	/** bytes of removed records; reclaimed by compact() */
+	private long dead_bytes;
+	private long used_bytes;
+	/** folds in progress walk the slabs, which must not be compacted */
+	private final AtomicInteger folds = new AtomicInteger();
+
+	public OffHeapKeyDir() {
+		this(1024);
+	}
+
+	public OffHeapKeyDir(int initial_capacity) {
+		int cap = 16;
+		while (cap * 3 / 4 < initial_capacity) {
+			cap <<= 1;
+		}
+		addrs = new long[cap];
+		hashes = new int[cap];
+		threshold = cap * 3 / 4;
+	}
+
+	@Override
+	public boolean put(ByteString key, BitCaskEntry ent) {
+		ByteBuffer k = key.asReadOnlyByteBuffer();
+		int hash = hash(k);
+
+		boolean put;
+		Lock writeLock = rwl.writeLock();
+		writeLock.lock();
+		try {
+			put = put_locked(k, hash, ent);
+		} finally {
+			writeLock.unlock();
+		}
+
+		if (put) {
+			expire(key, ent);
+		}
+		return put;
+	}
+
+	/** Copies the key straight from buf into a slab */
+	@Override
+	public boolean put(byte[] buf, int key_off, int key_len, BitCaskEntry ent) {
+		ByteBuffer k = ByteBuffer.wrap(buf, key_off, key_len);
+		int hash = hash(k);
+
+		boolean put;
+		Lock writeLock = rwl.writeLock();
+		writeLock.lock();
+		try {
+			put = put_locked(k, hash, ent);
+		} finally {
+			writeLock.unlock();
+		}
+
+		// no heap copy of the key unless it is needed
+		if (put && ent.expiry != 0) {
+			expire(ByteString.copyFrom(buf, key_off, key_len), ent);
+		}
+		return put;
+	}
+
+	@Override
+	public void put_all(List<ByteString> keys, int from, BitCaskEntry[] ents) {
+		boolean[] put = new boolean[ents.length];
+		Lock writeLock = rwl.writeLock();
+		writeLock.lock();
+		try {
+			for (int i = 0; i < ents.length; i++) {
+				ByteBuffer k = keys.get(from + i).asReadOnlyByteBuffer();
+				put[i] = put_locked(k, hash(k), ents[i]);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+
+		for (int i = 0; i < ents.length; i++) {
+			if (put[i]) {
+				expire(keys.get(from + i), ents[i]);
+			}
+		}
+	}
+
+	private boolean put_locked(ByteBuffer k, int hash, BitCaskEntry ent) {
+		int slot = find_slot(k, hash);
+		long addr = addrs[slot] - 1;
+		if (addr == -1) {
+			if (has_snapshots()) {
+				before_change(ByteString.copyFrom(k.duplicate()), null);
+			}
+			addrs[slot] = 1 + append(k, ent);
+			hashes[slot] = hash;
+			if (++count > threshold) {
+				grow();
+			}
+			update_fstats(null, ent, true);
+			return true;
+		}
+
+		BitCaskEntry old = entry_at(addr);
+		if (ent.is_newer_than(old)) {
+			if (has_snapshots()) {
+				before_change(ByteString.copyFrom(k.duplicate()), old);
+			}
+			store_entry(addr, ent);
+			update_fstats(old, ent, true);
+			return true;
+		} else {
+			update_fstats(null, ent, false);
+			return false;
+		}
+	}
+
+	@Override
+	public boolean replace(ByteString key, BitCaskEntry old_ent,
+			BitCaskEntry ent) {
+		ByteBuffer k = key.asReadOnlyByteBuffer();
+		int hash = hash(k);
+
+		Lock writeLock = rwl.writeLock();
+		writeLock.lock();
+		try {
+
+			long addr = addrs[find_slot(k, hash)] - 1;
+			if (addr == -1 || !entry_is(addr, old_ent)) {
+				return false;
+			}
+
+			BitCaskEntry old = entry_at(addr);
+			before_change(key, old);
+			update_fstats(old, ent, true);
+			store_entry(addr, ent);
+
+		} finally {
+			writeLock.unlock();
+		}
+
+		expire(key, ent);
+		return true;
+	}
+
+	/**
+	 * Removes the slot with backward shift deletion, so that probe
+	 * sequences need no tombstones. The record is marked dead in its slab,
+	 * and the slabs are compacted once more than half of them is dead.
+	 */
+	@Override
+	public boolean remove(ByteString key, BitCaskEntry ent) {
+		ByteBuffer k = key.asReadOnlyByteBuffer();
+		int hash = hash(k);
+
+		Lock writeLock = rwl.writeLock();
+		writeLock.lock();
+		try {
+
+			int slot = find_slot(k, hash);
+			long addr = addrs[slot] - 1;
+			if (addr == -1 || !entry_is(addr, ent)) {
+				return false;
+			}
+
+			BitCaskEntry old = entry_at(addr);
+			before_change(key, old);
+			update_fstats(old, null, false);
+			slab(addr).putInt((int) (addr & SLAB_MASK) + REC_FILE_ID, DEAD);
+			dead_bytes += REC_KEY + k.remaining();
+			count -= 1;
+
+			int mask = addrs.length - 1;
+			int hole = slot;
+			for (int i = (slot + 1) & mask; addrs[i] != 0; i = (i + 1) & mask) {
+				int home = hashes[i] & mask;
+				// move i into the hole, unless its home lies in (hole, i]
+				if (((i - home) & mask) >= ((i - hole) & mask)) {
+					addrs[hole] = addrs[i];
+					hashes[hole] = hashes[i];
+					hole = i;
+				}
+			}
+			addrs[hole] = 0;
+			hashes[hole] = 0;
+
+			if (dead_bytes > SLAB_SIZE && dead_bytes * 2 > used_bytes
+					&& folds.get() == 0) {
+				compact();
+			}
+
+			return true;
+
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private boolean entry_is(long addr, BitCaskEntry ent) {
+		ByteBuffer slab = slab(addr);
+		int pos = (int) (addr & SLAB_MASK);
+		return slab.getInt(pos + REC_FILE_ID) == ent.file_id
+				&& slab.getLong(pos + REC_OFFSET) == ent.offset;
+	}
+
+	/** Copy the live records into fresh slabs; needs the write lock */
+	private void compact() {
+		ArrayList<ByteBuffer> old_slabs = new ArrayList<ByteBuffer>(slabs);
+		slabs.clear();
+		slab_used.clear();
+		slab_pos = SLAB_SIZE;
+		used_bytes = 0;
+		dead_bytes = 0;
+
+		for (int i = 0; i < addrs.length; i++) {
+			long addr = addrs[i] - 1;
+			if (addr == -1) {
+				continue;
+			}
+
+			ByteBuffer slab = old_slabs.get((int) (addr >>> SLAB_SHIFT));
+			int pos = (int) (addr & SLAB_MASK);
+			ByteBuffer key = slab.duplicate();
+			key.limit(pos + REC_KEY + slab.getChar(pos + REC_KEY_LEN));
+			key.position(pos + REC_KEY);
+
+			addrs[i] = 1 + append(key, read_entry(slab, pos));
+		}
+	}
+
+	/** Updates hold the write lock, so the read lock keeps them out */
+	@Override
+	Lock snapshot_exclusion() {
+		return rwl.readLock();
+	}
+
+	@Override
+	public BitCaskEntry get(ByteString key) {
+		ByteBuffer k = key.asReadOnlyByteBuffer();
+		int hash = hash(k);
+
+		Lock readLock = rwl.readLock();
+		readLock.lock();
+		try {
+
+			long addr = addrs[find_slot(k, hash)] - 1;
+			if (addr == -1) {
+				return null;
+			}
+
+			return entry_at(addr);
+
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	@Override
+	public BitCaskEntry[] get_all(ByteString[] keys) {
+		BitCaskEntry[] ents = new BitCaskEntry[keys.length];
+		Lock readLock = rwl.readLock();
+		readLock.lock();
+		try {
+			for (int i = 0; i < keys.length; i++) {
+				ByteBuffer k = keys[i].asReadOnlyByteBuffer();
+				long addr = addrs[find_slot(k, hash(k))] - 1;
+				ents[i] = addr == -1 ? null : entry_at(addr);
+			}
+		} finally {
+			readLock.unlock();
+		}
+		return ents;
+	}
+
+	/**
+	 * Walks the slabs rather than the table, since records only move when
+	 * the slabs are compacted, which waits for folds to finish. Batches of
+	 * records are copied out under the read lock, and iter is called
+	 * without holding it. Only the records present when the fold starts
+	 * are walked: a key removed and added back meanwhile gets a new record
+	 * at the end, and would otherwise be visited twice.
+	 */
+	@Override
+	public <T> T fold(KeyDirIter<T> iter, T acc) throws Exception {
+		ByteString[] keys = new ByteString[FOLD_BATCH];
+		BitCaskEntry[] ents = new BitCaskEntry[FOLD_BATCH];
+
+		Lock readLock = rwl.readLock();
+		readLock.lock();
+		folds.incrementAndGet();
+		int end_slab = slabs.size() - 1;
+		int end_pos = slab_pos;
+		readLock.unlock();
+
+		try {
+			return fold_slabs(iter, acc, keys, ents, end_slab, end_pos);
+		} finally {
+			folds.decrementAndGet();
+		}
+	}
+
+	private <T> T fold_slabs(KeyDirIter<T> iter, T acc, ByteString[] keys,
+			BitCaskEntry[] ents, int end_slab, int end_pos) throws Exception {
+
+		int slab = 0;
+		int pos = 0;
+		while (true) {
+
+			int n = 0;
+			Lock readLock = rwl.readLock();
+			readLock.lock();
+			try {
+				while (n < FOLD_BATCH && slab <= end_slab) {
+					if (pos >= (slab == end_slab ? end_pos : slab_used.get(slab))) {
+						slab += 1;
+						pos = 0;
+						continue;
+					}
+
+					long addr = ((long) slab << SLAB_SHIFT) | pos;
+					ByteBuffer s = slabs.get(slab);
+					int key_len = s.getChar(pos + REC_KEY_LEN);
+
+					if (s.getInt(pos + REC_FILE_ID) != DEAD) {
+						keys[n] = key_at(addr, key_len);
+						ents[n] = entry_at(addr);
+						n += 1;
+					}
+
+					pos += REC_KEY + key_len;
+				}
+			} finally {
+				readLock.unlock();
+			}
+
+			if (n == 0) {
+				return acc;
+			}
+
+			for (int i = 0; i < n; i++) {
+				acc = iter.each(keys[i], ents[i], acc);
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		Lock readLock = rwl.readLock();
+		readLock.lock();
+		try {
+			return count;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/** Find the slot holding key, or the empty slot where it belongs */
+	private int find_slot(ByteBuffer key, int hash) {
+		int mask = addrs.length - 1;
+		int slot = hash & mask;
+		while (true) {
+			long addr = addrs[slot];
+			if (addr == 0) {
+				return slot;
+			}
+			if (hashes[slot] == hash && key_equals(addr - 1, key)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean key_equals(long addr, ByteBuffer key) {
+		ByteBuffer slab = slab(addr);
+		int pos = (int) (addr & SLAB_MASK);
+
+		int key_len = slab.getChar(pos + REC_KEY_LEN);
+		if (key_len != key.remaining()) {
+			return false;
+		}
+
+		int key_pos = pos + REC_KEY;
+		int k = key.position();
+		for (int i = 0; i < key_len; i++) {
+			if (slab.get(key_pos + i) != key.get(k + i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void grow() {
+		long[] old_addrs = addrs;
+		int[] old_hashes = hashes;
+
+		int cap = old_addrs.length << 1;
+		int mask = cap - 1;
+		addrs = new long[cap];
+		hashes = new int[cap];
+		threshold = cap * 3 / 4;
+
+		for (int i = 0; i < old_addrs.length; i++) {
+			if (old_addrs[i] != 0) {
+				int slot = old_hashes[i] & mask;
+				while (addrs[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				addrs[slot] = old_addrs[i];
+				hashes[slot] = old_hashes[i];
+			}
+		}
+	}
+
+	/** Append a new record to the current slab; return its address */
+	private long append(ByteBuffer key, BitCaskEntry ent) {
+		int rec_size = REC_KEY + key.remaining();
+		if (slab_pos + rec_size > SLAB_SIZE) {
+			if (!slabs.isEmpty()) {
+				slab_used.add(slab_pos);
+			}
+			slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+			slab_pos = 0;
+		}
+
+		long addr = ((long) (slabs.size() - 1) << SLAB_SHIFT) | slab_pos;
+		ByteBuffer slab = slabs.get(slabs.size() - 1);
+
+		slab.putShort(slab_pos + REC_KEY_LEN, (short) key.remaining());
+		ByteBuffer dst = slab.duplicate();
+		dst.position(slab_pos + REC_KEY);
+		dst.put(key.duplicate());
+
+		slab_pos += rec_size;
+		used_bytes += rec_size;
+
+		store_entry(addr, ent);
+		return addr;
+	}
+
+	private void store_entry(long addr, BitCaskEntry ent) {
+		ByteBuffer slab = slab(addr);
+		int pos = (int) (addr & SLAB_MASK);
+
+		slab.putInt(pos + REC_FILE_ID, ent.file_id);
+		slab.putInt(pos + REC_TSTAMP, ent.tstamp);
+		slab.putLong(pos + REC_OFFSET, ent.offset);
+		slab.putInt(pos + REC_TOTAL_SZ, ent.total_sz);
+		slab.putInt(pos + REC_EXPIRY, ent.expiry);
+	}
+
+	private BitCaskEntry entry_at(long addr) {
+		return read_entry(slab(addr), (int) (addr & SLAB_MASK));
+	}
+
+	private static BitCaskEntry read_entry(ByteBuffer slab, int pos) {
+		return new BitCaskEntry(slab.getInt(pos + REC_FILE_ID),
+				slab.getInt(pos + REC_TSTAMP),
+				slab.getLong(pos + REC_OFFSET),
+				slab.getInt(pos + REC_TOTAL_SZ),
+				slab.getInt(pos + REC_EXPIRY));
+	}
+
+	private ByteString key_at(long addr, int key_len) {
+		ByteBuffer key = slab(addr).duplicate();
+		int pos = (int) (addr & SLAB_MASK) + REC_KEY;
+		key.limit(pos + key_len);
+		key.position(pos);
+		return ByteString.copyFrom(key);
+	}
+
+	private ByteBuffer slab(long addr) {
+		return slabs.get((int) (addr >>> SLAB_SHIFT));
+	}
+
+	private static int hash(ByteBuffer key) {
+		int h = 0;
+		for (int i = key.position(); i < key.limit(); i++) {
+			h = 31 * h + key.get(i);
+		}
+
+		// murmur3 finalizer, linear probing needs well spread low bits
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+}
@@ -0,0 +1,177 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The files a bitcask has open for reading, at most max_open of them.
+ * When a file must be opened and the cache is full, the least recently
+ * used one is evicted.
+ *
+ * Files are reference counted: readers {@link #acquire(File)} a handle and
+ * {@link #release(Handle)} it when done, and a file is only closed once
+ * it has been evicted and released by every reader. So a file evicted in
+ * the middle of a read stays open (beyond max_open) until that read is
+ * done.
+ */
+public abstract class ReadFileCache {
+
+	static class Handle {
+		final BitCaskFile file;
+		/** one for the cache, plus one per reader */
+		final AtomicInteger refs = new AtomicInteger(1);
+		/** racy; only a hint for eviction */
+		long used = System.nanoTime();
+
+		Handle(BitCaskFile file) {
+			this.file = file;
+		}
+
+		boolean retain() {
+			int n;
+			do {
+				n = refs.get();
+				if (n == 0) {
+					return false;
+				}
+			} while (!refs.compareAndSet(n, n + 1));
+			return true;
+		}
+	}
+
+	private final ConcurrentMap<File, Handle> files = new ConcurrentHashMap<File, Handle>();
+	private final int max_open;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	ReadFileCache(int max_open) {
+		this.max_open = Math.max(1, max_open);
+	}
+
+	/** Open filename for reading; called on a miss */
+	abstract BitCaskFile open(File filename) throws IOException;
+
+	/** Close a file that has been evicted and released by all readers */
+	abstract void close(BitCaskFile file) throws IOException;
+
+	/** Get a handle for filename, opening the file if it is not cached */
+	Handle acquire(File filename) throws IOException {
+		Handle h = files.get(filename);
+		if (h != null && h.retain()) {
+			h.used = System.nanoTime();
+			hits.incrementAndGet();
+			return h;
+		}
+
+		synchronized (this) {
+			h = files.get(filename);
+			if (h != null && h.retain()) {
+				hits.incrementAndGet();
+				return h;
+			}
+
+			misses.incrementAndGet();
+			h = new Handle(open(filename));
+			h.refs.incrementAndGet();
+			insert(filename, h);
+			return h;
+		}
+	}
+
+	void release(Handle h) throws IOException {
+		if (h.refs.decrementAndGet() == 0) {
+			close(h.file);
+		}
+	}
+
+	/** Add a file that is already open, replacing any cached handle */
+	synchronized void put(BitCaskFile file) throws IOException {
+		insert(file.filename, new Handle(file));
+	}
+
+	/** Drop filename from the cache */
+	synchronized void evict(File filename) throws IOException {
+		Handle h = files.remove(filename);
+		if (h != null) {
+			release(h);
+		}
+	}
+
+	/** Drop all files */
+	synchronized void clear() throws IOException {
+		for (File filename : new ArrayList<File>(files.keySet())) {
+			evict(filename);
+		}
+	}
+
+	private void insert(File filename, Handle h) throws IOException {
+		Handle old = files.put(filename, h);
+		if (old != null) {
+			release(old);
+		}
+
+		while (files.size() > max_open) {
+			Map.Entry<File, Handle> lru = null;
+			for (Map.Entry<File, Handle> ent : files.entrySet()) {
+				if (ent.getValue() != h
+						&& (lru == null || ent.getValue().used < lru.getValue().used)) {
+					lru = ent;
+				}
+			}
+
+			if (lru == null || !files.remove(lru.getKey(), lru.getValue())) {
+				break;
+			}
+
+			evictions.incrementAndGet();
+			release(lru.getValue());
+		}
+	}
+
+	/** Number of files currently cached */
+	public int size() {
+		return files.size();
+	}
+
+	/** Number of reads that found their file open */
+	public long hits() {
+		return hits.get();
+	}
+
+	/** Number of reads that had to open their file */
+	public long misses() {
+		return misses.get();
+	}
+
+	/** Number of files closed to stay within the limit */
+	public long evictions() {
+		return evictions.get();
+	}
+
+}
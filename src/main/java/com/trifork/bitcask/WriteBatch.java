@@ -0,0 +1,54 @@
+/**
+ * This file is part of Bitcask Java
+ *
+ * Copyright (c) 2011 by Trifork
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.trifork.bitcask;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * A number of puts to be written together with {@link BitCask#write(WriteBatch)}.
+ * Entries are written in the order they were added.
+ */
+public class WriteBatch {
+
+	final List<ByteString> keys = new ArrayList<ByteString>();
+	final List<ByteString> values = new ArrayList<ByteString>();
+
+	public WriteBatch put(ByteString key, ByteString value) {
+		keys.add(key);
+		values.add(value);
+		return this;
+	}
+
+	public WriteBatch put(String key, String value) {
+		return put(ByteString.copyFromUtf8(key), ByteString.copyFromUtf8(value));
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	public void clear() {
+		keys.clear();
+		values.clear();
+	}
+
+}
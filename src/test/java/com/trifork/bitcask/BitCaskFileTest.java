@@ -6,6 +6,7 @@ import static net.java.quickcheck.generator.CombinedGeneratorsIterables.somePair
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 
 import net.java.quickcheck.collection.Pair;
@@ -94,4 +95,157 @@ public class BitCaskFileTest {
 		
 	}
 
+	/** hint files spanning many read blocks, and with a truncated tail */
+	@Test
+	public void testLargeHintFile() throws Exception {
+
+		for (int i = 0; i < 30000; i++) {
+			data_file.write(ByteString.copyFromUtf8("key-" + i + "-" + (i * 7919)),
+					ByteString.copyFromUtf8("value-" + i));
+		}
+
+		KeyIter<ArrayList<String>> iter = new KeyIter<ArrayList<String>>() {
+			@Override
+			public ArrayList<String> each(ByteString key, int tstamp, long off,
+					int sz, ArrayList<String> acc) {
+				acc.add(key.toStringUtf8() + ":" + tstamp + ":" + off + ":" + sz);
+				return acc;
+			}
+		};
+
+		data_file.close();
+		data_file = BitCaskFile.open(data_dir, 1);
+
+		ArrayList<String> al1 = data_file.fold_keys_datafile(iter, new ArrayList<String>());
+		ArrayList<String> al2 = data_file.fold_keys_hintfile(iter, new ArrayList<String>());
+
+		Assert.assertEquals(30000, al1.size());
+		Assert.assertEquals(al1, al2);
+
+		File hint = new File(data_dir, "1.bitcask.hint");
+		RandomAccessFile raf = new RandomAccessFile(hint, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		ArrayList<String> al3 = data_file.fold_keys_hintfile(iter, new ArrayList<String>());
+		Assert.assertEquals(al1.subList(0, 29999), al3);
+	}
+
+	/** folds over data files spanning many read blocks, and with a truncated tail */
+	@Test
+	public void testLargeDataFile() throws Exception {
+
+		for (int i = 0; i < 30000; i++) {
+			// some entries are larger than a block
+			String value = i % 1000 == 0 ? new String(new char[5000]) : "value-" + i;
+			data_file.write(ByteString.copyFromUtf8("key-" + i),
+					ByteString.copyFromUtf8(value));
+		}
+
+		EntryIter<ArrayList<String>> iter = new EntryIter<ArrayList<String>>() {
+			@Override
+			public ArrayList<String> each(ByteString key, ByteString value,
+					int tstamp, long off, int sz, ArrayList<String> acc) {
+				acc.add(key.toStringUtf8() + ":" + value.size() + ":" + off + ":" + sz);
+				return acc;
+			}
+		};
+
+		KeyIter<ArrayList<String>> key_iter = new KeyIter<ArrayList<String>>() {
+			@Override
+			public ArrayList<String> each(ByteString key, int tstamp, long off,
+					int sz, ArrayList<String> acc) {
+				acc.add(key.toStringUtf8() + ":" + off + ":" + sz);
+				return acc;
+			}
+		};
+
+		data_file.close();
+		data_file = BitCaskFile.open(data_dir, 1);
+
+		ArrayList<String> al1 = data_file.fold(iter, new ArrayList<String>(), 4096);
+		ArrayList<String> al2 = data_file.fold(iter, new ArrayList<String>());
+		Assert.assertEquals(30000, al1.size());
+		Assert.assertEquals(al1, al2);
+		Assert.assertEquals("key-1000:5000", al1.get(1000).substring(0, 13));
+
+		ArrayList<String> keys1 = data_file.fold_keys_datafile(key_iter, new ArrayList<String>());
+		ArrayList<String> keys2 = data_file.fold_keys_hintfile(key_iter, new ArrayList<String>());
+		Assert.assertEquals(30000, keys1.size());
+		Assert.assertEquals(keys1, keys2);
+
+		ArrayList<String> keys3 = data_file.fold_key_views_datafile(
+				new KeyViewIter<ArrayList<String>>() {
+					@Override
+					public ArrayList<String> each(byte[] buf, int key_off,
+							int key_len, int tstamp, long off, int sz,
+							ArrayList<String> acc) throws Exception {
+						acc.add(new String(buf, key_off, key_len, "UTF-8") + ":"
+								+ off + ":" + sz);
+						return acc;
+					}
+				}, new ArrayList<String>(), 4096);
+		Assert.assertEquals(keys1, keys3);
+
+		data_file.close();
+		File data = new File(data_dir, "1.bitcask.data");
+		RandomAccessFile raf = new RandomAccessFile(data, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+		data_file = BitCaskFile.open(data_dir, 1);
+
+		ArrayList<String> al3 = data_file.fold(iter, new ArrayList<String>(), 4096);
+		Assert.assertEquals(al1.subList(0, 29999), al3);
+	}
+
+	/**
+	 * tstamps keep their top bit (from 2038, or as the Erlang bitcask writes
+	 * them), also in files written with a codec
+	 */
+	@Test
+	public void testHighTstamp() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.codec = LZFCodec.DEFAULT;
+		BitCaskFile tagged = BitCaskFile.create(data_dir, 2);
+		tagged.compress_with(opts);
+
+		ByteString key = ByteString.copyFromUtf8("k");
+		ByteString value = ByteString.copyFromUtf8(new String(new char[500]));
+		int tstamp = 0x80000001;
+		BitCaskEntry[] written = {
+				data_file.write(key, value, tstamp),
+				tagged.write(key, value, tstamp) };
+		Assert.assertTrue(written[1].total_sz < written[0].total_sz);
+		data_file.close();
+		tagged.close();
+		Assert.assertFalse(new File(data_dir, "1.bitcask.codec").exists());
+		Assert.assertTrue(new File(data_dir, "2.bitcask.codec").exists());
+
+		for (int id = 1; id <= 2; id++) {
+			BitCaskFile file = BitCaskFile.open(data_dir, id);
+			BitCaskEntry ent = written[id - 1];
+			Assert.assertEquals(value, file.read(ent.offset, ent.total_sz)[1]);
+			file.fold(new EntryIter<Void>() {
+				@Override
+				public Void each(ByteString k, ByteString v, int ts, long off,
+						int sz, Void acc) {
+					Assert.assertEquals(0x80000001, ts);
+					Assert.assertEquals(ByteString.copyFromUtf8(new String(
+							new char[500])), v);
+					return null;
+				}
+			}, null);
+			file.fold_keys_datafile(new KeyIter<Void>() {
+				@Override
+				public Void each(ByteString k, int ts, long off, int sz,
+						Void acc) {
+					Assert.assertEquals(0x80000001, ts);
+					return null;
+				}
+			}, null);
+			file.close();
+		}
+		data_file = null;
+	}
+
 }
@@ -0,0 +1,281 @@
+package com.trifork.bitcask;
+
+import static net.java.quickcheck.generator.PrimitiveGenerators.integers;
+import static net.java.quickcheck.generator.PrimitiveGenerators.strings;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import net.java.quickcheck.Generator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+public class BitCaskKeyDirTest {
+
+	/** run the same random puts against the default and the off-heap
+	 * keydir, and check that they agree on every key */
+	@Test
+	public void testOffHeapKeyDir() throws Exception {
+
+		BitCaskKeyDir expected = new BitCaskKeyDir();
+		BitCaskKeyDir actual = new OffHeapKeyDir(16);
+
+		Generator<String> keys = strings(0, 40);
+		Generator<Integer> tstamps = integers(0, 100);
+		Random random = new Random(42);
+
+		ByteString[] all = new ByteString[5000];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = ByteString.copyFromUtf8(keys.next());
+		}
+
+		for (int i = 0; i < 50000; i++) {
+			ByteString key = all[random.nextInt(all.length)];
+			BitCaskEntry ent = new BitCaskEntry(random.nextInt(10),
+					tstamps.next(), random.nextInt(1 << 20), random.nextInt(1000));
+
+			Assert.assertEquals(expected.put(key, ent), actual.put(key, ent));
+		}
+
+		Assert.assertEquals(expected.size(), actual.size());
+
+		for (ByteString key : all) {
+			assertSameEntry(expected.get(key), actual.get(key));
+		}
+
+		Assert.assertNull(actual.get(ByteString.copyFromUtf8("no such key")));
+	}
+
+	@Test
+	public void testReplace() throws Exception {
+		for (BitCaskKeyDir keydir : new BitCaskKeyDir[] { new BitCaskKeyDir(),
+				new OffHeapKeyDir() }) {
+
+			ByteString key = ByteString.copyFromUtf8("k");
+			BitCaskEntry e1 = new BitCaskEntry(1, 10, 0, 20);
+			BitCaskEntry e2 = new BitCaskEntry(2, 11, 0, 20);
+			BitCaskEntry e3 = new BitCaskEntry(3, 10, 0, 20);
+
+			keydir.put(key, e1);
+			keydir.put(key, e2);
+
+			// e1 is no longer the current entry
+			Assert.assertFalse(keydir.replace(key, e1, e3));
+			Assert.assertTrue(keydir.replace(key, e2, e3));
+			assertSameEntry(e3, keydir.get(key));
+		}
+	}
+
+	/** removes, and the slab compaction they trigger, must leave the
+	 * off-heap keydir agreeing with the default one */
+	@Test
+	public void testRemove() throws Exception {
+
+		BitCaskKeyDir expected = new BitCaskKeyDir();
+		BitCaskKeyDir actual = new OffHeapKeyDir(16);
+
+		Generator<String> keys = strings(0, 40);
+		Random random = new Random(7);
+
+		ByteString[] all = new ByteString[20000];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = ByteString.copyFromUtf8(keys.next());
+		}
+
+		for (int i = 0; i < 200000; i++) {
+			ByteString key = all[random.nextInt(all.length)];
+			if (random.nextBoolean()) {
+				BitCaskEntry ent = new BitCaskEntry(random.nextInt(10), i,
+						random.nextInt(1 << 20), random.nextInt(1000));
+				Assert.assertEquals(expected.put(key, ent), actual.put(key, ent));
+			} else {
+				BitCaskEntry ent = expected.get(key);
+				if (ent != null) {
+					Assert.assertTrue(expected.remove(key, ent));
+					Assert.assertTrue(actual.remove(key, ent));
+					Assert.assertFalse(actual.remove(key, ent));
+				}
+			}
+		}
+
+		Assert.assertEquals(expected.size(), actual.size());
+		for (ByteString key : all) {
+			assertSameEntry(expected.get(key), actual.get(key));
+		}
+
+		int folded = actual.fold(new KeyDirIter<Integer>() {
+			@Override
+			public Integer each(ByteString key, BitCaskEntry entry, Integer acc) {
+				return acc + 1;
+			}
+		}, 0);
+		Assert.assertEquals(expected.size(), folded);
+	}
+
+	/** a key removed and added back during a fold of the off-heap keydir
+	 * gets a new slab record, which the fold must not visit again */
+	@Test
+	public void testFoldReAdd() throws Exception {
+		final OffHeapKeyDir keydir = new OffHeapKeyDir();
+
+		ByteString[] all = new ByteString[3000];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = ByteString.copyFromUtf8("key" + i);
+			keydir.put(all[i], new BitCaskEntry(1, 10, 20 * i, 20));
+		}
+
+		final Map<ByteString, Integer> visits = new HashMap<ByteString, Integer>();
+		keydir.fold(new KeyDirIter<Void>() {
+			@Override
+			public Void each(ByteString key, BitCaskEntry entry, Void acc) {
+				Integer n = visits.get(key);
+				visits.put(key, n == null ? 1 : n + 1);
+
+				BitCaskEntry ent = keydir.get(key);
+				if (ent.file_id == 1) {
+					Assert.assertTrue(keydir.remove(key, ent));
+					keydir.put(key, new BitCaskEntry(2, 11, ent.offset, 20));
+				}
+				return acc;
+			}
+		}, null);
+
+		for (ByteString key : all) {
+			Assert.assertEquals(Integer.valueOf(1), visits.get(key));
+			Assert.assertEquals(2, keydir.get(key).file_id);
+		}
+	}
+
+	/** expired entries are swept, unless replaced by a newer entry */
+	@Test
+	public void testSweep() throws Exception {
+		for (BitCaskKeyDir keydir : new BitCaskKeyDir[] { new BitCaskKeyDir(),
+				new OffHeapKeyDir() }) {
+
+			int now = BitCaskFile.tstamp();
+			ByteString k1 = ByteString.copyFromUtf8("k1");
+			ByteString k2 = ByteString.copyFromUtf8("k2");
+			ByteString k3 = ByteString.copyFromUtf8("k3");
+
+			keydir.put(k1, new BitCaskEntry(1, now, 0, 20, now + 1));
+			keydir.put(k2, new BitCaskEntry(1, now, 20, 20, now + 1));
+			keydir.put(k2, new BitCaskEntry(1, now, 40, 20));
+			keydir.put(k3, new BitCaskEntry(1, now, 60, 20, now + 10000));
+
+			Assert.assertEquals(0, keydir.sweep(now));
+			Assert.assertEquals(1, keydir.sweep(now + 1));
+			Assert.assertNull(keydir.get(k1));
+			Assert.assertNotNull(keydir.get(k2));
+
+			// more than one round of the wheel ahead
+			Assert.assertEquals(0, keydir.sweep(now + 9999));
+			Assert.assertEquals(1, keydir.sweep(now + 10000));
+			Assert.assertEquals(1, keydir.size());
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		for (BitCaskKeyDir keydir : new BitCaskKeyDir[] { new BitCaskKeyDir(),
+				new OffHeapKeyDir() }) {
+
+			ByteString k1 = ByteString.copyFromUtf8("k1");
+			ByteString k2 = ByteString.copyFromUtf8("k2");
+			ByteString k3 = ByteString.copyFromUtf8("k3");
+			ByteString k4 = ByteString.copyFromUtf8("k4");
+
+			BitCaskEntry e1 = new BitCaskEntry(1, 10, 0, 20);
+			BitCaskEntry e2 = new BitCaskEntry(1, 10, 20, 20);
+			BitCaskEntry e3 = new BitCaskEntry(1, 10, 40, 20);
+			keydir.put(k1, e1);
+			keydir.put(k2, e2);
+			keydir.put(k3, e3);
+
+			KeyDirSnapshot snapshot = keydir.snapshot();
+
+			BitCaskEntry n1 = new BitCaskEntry(2, 11, 0, 20);
+			BitCaskEntry n3 = new BitCaskEntry(3, 10, 0, 20);
+			keydir.put(k1, n1);
+			keydir.put(k1, new BitCaskEntry(2, 12, 20, 20));
+			Assert.assertTrue(keydir.remove(k2, e2));
+			Assert.assertTrue(keydir.replace(k3, e3, n3));
+			keydir.put(k4, new BitCaskEntry(2, 12, 40, 20));
+
+			// the keydir moves on, the snapshot does not
+			Assert.assertEquals(12, keydir.get(k1).tstamp);
+			Assert.assertNull(keydir.get(k2));
+			assertSameEntry(n3, keydir.get(k3));
+			assertSameEntry(e1, snapshot.get(k1));
+			assertSameEntry(e2, snapshot.get(k2));
+			assertSameEntry(e3, snapshot.get(k3));
+			Assert.assertNull(snapshot.get(k4));
+			Assert.assertEquals(4, snapshot.changed());
+
+			// a later snapshot sees the later state
+			KeyDirSnapshot later = keydir.snapshot();
+			keydir.put(k2, new BitCaskEntry(2, 13, 60, 20));
+			assertSameEntry(e2, snapshot.get(k2));
+			Assert.assertNull(later.get(k2));
+			later.close();
+
+			// once closed, changes are no longer recorded
+			snapshot.close();
+			keydir.put(k1, new BitCaskEntry(2, 14, 80, 20));
+			Assert.assertEquals(4, snapshot.changed());
+			Assert.assertEquals(1, later.changed());
+		}
+	}
+
+	/** concurrent puts of the same keys must always leave the newest
+	 * entry, regardless of the order in which the threads get there */
+	@Test
+	public void testConcurrentPut() throws Exception {
+		final BitCaskKeyDir keydir = new BitCaskKeyDir();
+		final ByteString[] keys = new ByteString[100];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = ByteString.copyFromUtf8("k" + i);
+		}
+
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int file_id = t;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int ts = 0; ts < 1000; ts++) {
+						for (ByteString key : keys) {
+							keydir.put(key, new BitCaskEntry(file_id, ts, 0, 1));
+							Assert.assertNotNull(keydir.get(key));
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		for (ByteString key : keys) {
+			assertSameEntry(new BitCaskEntry(threads.length - 1, 999, 0, 1),
+					keydir.get(key));
+		}
+	}
+
+	static void assertSameEntry(BitCaskEntry expected, BitCaskEntry actual) {
+		if (expected == null) {
+			Assert.assertNull(actual);
+			return;
+		}
+
+		Assert.assertEquals(expected.file_id, actual.file_id);
+		Assert.assertEquals(expected.tstamp, actual.tstamp);
+		Assert.assertEquals(expected.offset, actual.offset);
+		Assert.assertEquals(expected.total_sz, actual.total_sz);
+	}
+
+}
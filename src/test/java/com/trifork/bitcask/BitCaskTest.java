@@ -2,8 +2,25 @@ package com.trifork.bitcask;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
 
@@ -75,8 +92,1486 @@ public class BitCaskTest {
 		}
 		
 		assertEquals(3, b.readable_files().length);
+
+		// sealed files are read through a mapping
+		assertTrue(b.mapped_bytes.get() > 0);
 		
 		b.close();
+
+		assertEquals(0, b.mapped_bytes.get());
+
+		BitCaskOptions unmapped = new BitCaskOptions();
+		unmapped.max_mapped_bytes = 0;
+		b = BitCask.open(new File("/tmp/bc.test.wrap"), unmapped);
+
+		for (Map.Entry<ByteString, ByteString> ents : defaultDataset().entrySet()) {
+			assertEquals(ents.getValue(), b.get(ents.getKey()));
+		}
+
+		assertEquals(0, b.mapped_bytes.get());
+
+		b.close();
+	}
+
+	@Test
+	public void getBufferTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 30;
+		BitCask b = initDataset("/tmp/bc.test.getbuffer", opts, defaultDataset());
+
+		// sealed (mapped) files as well as the active file
+		assertTrue(b.readable_files().length > 0);
+
+		for (Map.Entry<ByteString, ByteString> ents : defaultDataset().entrySet()) {
+			ByteBuffer value = b.getBuffer(ents.getKey());
+			assertEquals(ents.getValue(), ByteString.copyFrom(value));
+			assertTrue(value.isReadOnly());
+
+			// room for the whole entry
+			ByteBuffer dst = ByteBuffer.allocate(100);
+			dst.position(7);
+			assertEquals(ents.getValue().size(), b.get(ents.getKey(), dst));
+			assertEquals(7 + ents.getValue().size(), dst.position());
+			dst.flip().position(7);
+			assertEquals(ents.getValue(), ByteString.copyFrom(dst));
+
+			// room for the value only
+			dst = ByteBuffer.allocateDirect(ents.getValue().size());
+			assertEquals(ents.getValue().size(), b.get(ents.getKey(), dst));
+			dst.flip();
+			assertEquals(ents.getValue(), ByteString.copyFrom(dst));
+		}
+
+		ByteBuffer dst = ByteBuffer.allocate(10);
+		assertNull(b.getBuffer(bs("nope")));
+		assertEquals(-1, b.get(bs("nope"), dst));
+		assertEquals(0, dst.position());
+
+		// a larger value is read straight into a dst with room for it alone
+		byte[] big = new byte[200];
+		new Random(1).nextBytes(big);
+		b.put(bs("big"), ByteString.copyFrom(big));
+		dst = ByteBuffer.allocate(big.length);
+		assertEquals(big.length, b.get(bs("big"), dst));
+		assertArrayEquals(big, dst.array());
+
+		// a deleted key, or a value that does not fit, leaves dst as it was
+		assertTrue(b.delete("k2"));
+		byte[] marks = new byte[300];
+		Arrays.fill(marks, (byte) 7);
+		dst = ByteBuffer.wrap(marks.clone());
+		dst.position(5);
+		assertEquals(-1, b.get(bs("k2"), dst));
+		dst.limit(5 + big.length - 1);
+		try {
+			b.get(bs("big"), dst);
+			fail();
+		} catch (BufferOverflowException e) {
+			// expected
+		}
+		assertEquals(5, dst.position());
+		assertArrayEquals(marks, dst.array());
+
+		b.close();
+	}
+
+	@Test
+	public void codecFileSizeTest() throws Exception {
+		// ten raw entries fill a file, but the tag makes them one byte longer
+		byte[] noise = new byte[100];
+		new Random(3).nextBytes(noise);
+		ByteString value = ByteString.copyFrom(noise);
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.codec = LZFCodec.DEFAULT;
+		opts.max_file_size = 10 * BitCaskFile.entry_size(bs("k00"), value);
+		BitCask b = initDataset("/tmp/bc.test.codecsize", opts,
+				new HashMap<ByteString, ByteString>());
+
+		WriteBatch batch = new WriteBatch();
+		for (int i = 0; i < 50; i++) {
+			batch.put(bs("k" + (10 + i)), value);
+		}
+		b.write(batch);
+		assertEquals(50, b.keydir.size());
+		for (File f : b.readable_files()) {
+			assertTrue(f.length() <= opts.max_file_size);
+		}
+		b.close();
+
+		// two raw entries and a byte fit, but not two tagged ones
+		opts.max_file_size = 2 * BitCaskFile.entry_size(bs("k00"), value) + 1;
+		b = initDataset("/tmp/bc.test.codecsize2", opts,
+				new HashMap<ByteString, ByteString>());
+		for (int i = 0; i < 10; i++) {
+			b.put(bs("k" + (10 + i)), value);
+		}
+		assertEquals(10, b.keydir.size());
+		for (File f : b.readable_files()) {
+			assertTrue(f.length() <= opts.max_file_size);
+		}
+		b.close();
+	}
+
+	@Test
+	public void writeBatchTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 1000;
+		BitCask b = initDataset("/tmp/bc.test.batch", opts, defaultDataset());
+
+		Map<ByteString, ByteString> expected = defaultDataset();
+		WriteBatch batch = new WriteBatch();
+		for (int i = 0; i < 200; i++) {
+			batch.put("k" + (i % 150), "value" + i);
+			expected.put(bs("k" + (i % 150)), bs("value" + i));
+		}
+		b.write(batch);
+
+		// the batch wrapped several times
+		assertTrue(b.readable_files().length > 3);
+
+		for (Map.Entry<ByteString, ByteString> ents : expected.entrySet()) {
+			assertEquals(ents.getValue(), b.get(ents.getKey()));
+		}
+		assertEquals(expected, contents(b));
+
+		b.close();
+
+		BitCaskKeyDir keydir = new BitCaskKeyDir();
+		BitCask.scan_key_files(b.readable_files(), keydir);
+		assertEquals(expected.size(), keydir.size());
+	}
+
+	@Test
+	public void fileCacheTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 1000;
+		opts.max_open_files = 2;
+		final BitCask b = initDataset("/tmp/bc.test.filecache", opts,
+				defaultDataset());
+
+		WriteBatch batch = new WriteBatch();
+		for (int i = 0; i < 500; i++) {
+			batch.put("k" + i, "v" + i);
+		}
+		b.write(batch);
+		assertTrue(b.readable_files().length > 5);
+
+		// a handle evicted while in use stays open until released
+		BitCaskEntry ent = b.keydir.get(bs("k0"));
+		ReadFileCache.Handle h = b.read_files.acquire(BitCaskFile.mk_filename(
+				new File("/tmp/bc.test.filecache"), ent.file_id));
+		for (File f : b.readable_files()) {
+			b.read_files.release(b.read_files.acquire(f));
+		}
+		assertEquals(2, b.file_cache().size());
+		assertEquals(1, h.refs.get());
+		assertEquals(bs("v0"), h.file.read(ent.offset, ent.total_sz)[1]);
+		b.read_files.release(h);
+
+		final Throwable[] failure = new Throwable[1];
+		Thread[] readers = new Thread[4];
+		for (int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread() {
+				public void run() {
+					try {
+						for (int n = 0; n < 5; n++) {
+							for (int i = 0; i < 500; i++) {
+								assertEquals("v" + i, b.getString("k" + i));
+							}
+						}
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+			readers[t].start();
+		}
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		assertNull(failure[0]);
+
+		assertTrue(b.file_cache().size() <= 2);
+		assertTrue(b.file_cache().hits() > 0);
+		assertTrue(b.file_cache().evictions() > 0);
+		assertTrue(b.file_cache().misses() > 0);
+
+		b.close();
+		assertEquals(0, b.file_cache().size());
+		assertEquals(0, b.mapped_bytes.get());
+	}
+
+	@Test
+	public void ttlTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 1000;
+		BitCask b = initDataset("/tmp/bc.test.ttl", opts, defaultDataset());
+
+		// an older value without ttl must not come back once k expires
+		b.put(bs("k"), bs("v"), 1);
+		for (int i = 0; i < 100; i++) {
+			b.put(bs("short" + i), bs("v" + i), 1);
+			b.put(bs("long" + i), bs("v" + i), 1000);
+		}
+		assertEquals("v", b.getString("k"));
+		assertEquals(203, b.keydir.size());
+
+		Thread.sleep(2500);
+
+		assertNull(b.getString("k"));
+		assertNull(b.getString("short0"));
+		assertEquals("v0", b.getString("long0"));
+		assertEquals("v2", b.getString("k2"));
+
+		// the sweeper has released the expired keys
+		assertEquals(102, b.keydir.size());
+
+		// and so does loading them again
+		b.close();
+		File[] files = b.readable_files();
+		for (BitCaskKeyDir keydir : new BitCaskKeyDir[] { new BitCaskKeyDir(),
+				new OffHeapKeyDir() }) {
+			BitCask.scan_key_files(files, keydir, 1);
+			assertEquals(102, keydir.size());
+			assertNull(keydir.get(bs("k")));
+			assertTrue(keydir.get(bs("long0")).expiry > BitCaskFile.tstamp());
+		}
+	}
+
+	@Test
+	public void deleteTest() throws Exception {
+		File dir = new File("/tmp/bc.test.delete");
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 1000;
+		BitCask b = initDataset(dir.getPath(), opts, defaultDataset());
+
+		for (int i = 0; i < 100; i++) {
+			b.put("k" + i, "v" + i);
+		}
+
+		BitCaskEntry old = b.keydir.get(bs("k2"));
+		long dead = b.stats().get(old.file_id).dead_bytes();
+		assertTrue(b.delete("k2"));
+		assertFalse(b.delete("k2"));
+		assertFalse(b.delete("no such key"));
+		assertNull(b.getString("k2"));
+		assertNull(b.keydir.get(bs("k2")));
+		assertTrue(b.stats().get(old.file_id).dead_bytes() >= dead
+				+ old.total_sz);
+
+		for (int i = 4; i < 100; i += 2) {
+			assertTrue(b.delete("k" + i));
+		}
+		b.put("k4", "again");
+		assertEquals("again", b.getString("k4"));
+		assertEquals(53, b.keydir.size());
+		b.close();
+
+		// tombstones shadow the old values when loading, and are not kept
+		File[] files = b.readable_files();
+		for (BitCaskKeyDir keydir : new BitCaskKeyDir[] { new BitCaskKeyDir(),
+				new OffHeapKeyDir() }) {
+			BitCask.scan_key_files(files, keydir, 1);
+			assertEquals(53, keydir.size());
+			assertNull(keydir.get(bs("k2")));
+			assertNotNull(keydir.get(bs("k4")));
+		}
+
+		// nor do the values come back after merging
+		Thread.sleep(1100);
+		BitCaskOptions rw = new BitCaskOptions();
+		rw.read_write = true;
+		b = BitCask.open(dir, rw);
+		b.merge();
+		b.close();
+
+		BitCaskKeyDir keydir = new BitCaskKeyDir();
+		BitCask.scan_key_files(b.readable_files(), keydir, 1);
+		assertEquals(53, keydir.size());
+		assertNull(keydir.get(bs("k2")));
+	}
+
+	@Test
+	public void parallelFoldTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 1000;
+		BitCask b = initDataset("/tmp/bc.test.pfold", opts, defaultDataset());
+
+		for (int i = 0; i < 300; i++) {
+			b.put("k" + (i % 200), "value" + i);
+		}
+		b.delete("k7");
+		assertTrue(b.readable_files().length > 3);
+
+		Map<ByteString, ByteString> expected = contents(b);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+
+			// build an index
+			Map<ByteString, ByteString> index = b.fold(
+					new KeyValueIter<Map<ByteString, ByteString>>() {
+						@Override
+						public Map<ByteString, ByteString> each(ByteString key,
+								ByteString value, Map<ByteString, ByteString> acc) {
+							assertNull(acc.put(key, value));
+							return acc;
+						}
+					}, new Combiner<Map<ByteString, ByteString>>() {
+						@Override
+						public Map<ByteString, ByteString> zero() {
+							return new HashMap<ByteString, ByteString>();
+						}
+
+						@Override
+						public Map<ByteString, ByteString> combine(
+								Map<ByteString, ByteString> acc1,
+								Map<ByteString, ByteString> acc2) {
+							acc1.putAll(acc2);
+							return acc1;
+						}
+					}, pool);
+			assertEquals(expected, index);
+
+			// count
+			long count = b.fold(new KeyValueIter<Long>() {
+				@Override
+				public Long each(ByteString key, ByteString value, Long acc) {
+					return acc + 1;
+				}
+			}, new Combiner<Long>() {
+				@Override
+				public Long zero() {
+					return 0L;
+				}
+
+				@Override
+				public Long combine(Long acc1, Long acc2) {
+					return acc1 + acc2;
+				}
+			}, pool);
+			assertEquals(expected.size(), count);
+
+			// failures are passed on
+			try {
+				b.fold(new KeyValueIter<Long>() {
+					@Override
+					public Long each(ByteString key, ByteString value, Long acc) {
+						throw new IllegalStateException("boom");
+					}
+				}, new Combiner<Long>() {
+					@Override
+					public Long zero() {
+						return 0L;
+					}
+
+					@Override
+					public Long combine(Long acc1, Long acc2) {
+						return acc1 + acc2;
+					}
+				}, pool);
+				fail();
+			} catch (IllegalStateException e) {
+				assertEquals("boom", e.getMessage());
+			}
+
+		} finally {
+			pool.shutdown();
+		}
+
+		b.close();
+	}
+
+	@Test
+	public void keysTest() throws Exception {
+		for (boolean off_heap : new boolean[] { false, true }) {
+			BitCaskOptions opts = new BitCaskOptions();
+			opts.max_file_size = 1000;
+			opts.off_heap_keydir = off_heap;
+			opts.expiry_sweep_secs = 0;
+			final BitCask b = initDataset("/tmp/bc.test.keys" + off_heap, opts,
+					defaultDataset());
+
+			Set<ByteString> expected = new HashSet<ByteString>(defaultDataset()
+					.keySet());
+			for (int i = 0; i < 1000; i++) {
+				b.put("k" + i, "v" + i);
+				expected.add(bs("k" + i));
+			}
+			b.delete("k7");
+			expected.remove(bs("k7"));
+			b.put(bs("short"), bs("v"), 1);
+			Thread.sleep(2100);
+
+			// expired, but not yet swept from the keydir
+			assertNotNull(b.keydir.get(bs("short")));
+			assertEquals(expected, new HashSet<ByteString>(b.keys()));
+
+			// the size is that of the whole entry
+			long total = b.fold_keys(new KeyDirIter<Long>() {
+				@Override
+				public Long each(ByteString key, BitCaskEntry ent, Long acc) {
+					assertTrue(ent.tstamp > 0);
+					return acc + ent.total_sz;
+				}
+			}, 0L);
+			long bytes = 0;
+			for (Map.Entry<ByteString, ByteString> ent : contents(b).entrySet()) {
+				bytes += BitCaskFile.entry_size(ent.getKey().size(), ent
+						.getValue().size());
+			}
+			assertEquals(bytes, total);
+
+			// keys live throughout are all seen while writes go on
+			final AtomicBoolean done = new AtomicBoolean();
+			Thread writer = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; !done.get(); i++) {
+							b.put("new" + i, "v");
+							b.put("k" + (i % 1000), "again" + i);
+						}
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			writer.start();
+			for (int n = 0; n < 10; n++) {
+				Set<ByteString> keys = new HashSet<ByteString>(b.keys());
+				assertTrue(keys.containsAll(expected));
+			}
+			done.set(true);
+			writer.join();
+
+			b.close();
+			try {
+				b.keys();
+				fail();
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	@Test
+	public void entriesTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 1000;
+		BitCask b = initDataset("/tmp/bc.test.entries", opts, defaultDataset());
+
+		for (int i = 0; i < 300; i++) {
+			b.put("k" + (i % 200), "value" + i);
+		}
+		b.delete("k7");
+
+		Map<ByteString, ByteString> all = new HashMap<ByteString, ByteString>();
+		BitCaskIterator it = b.entries();
+		while (it.hasNext()) {
+			Map.Entry<ByteString, ByteString> ent = it.next();
+			assertNull(all.put(ent.getKey(), ent.getValue()));
+		}
+		assertEquals(contents(b), all);
+
+		// exhausted, so all files are closed
+		for (BitCaskFile f : it.files) {
+			assertFalse(f.rch.isOpen());
+		}
+		try {
+			it.next();
+			fail();
+		} catch (NoSuchElementException e) {
+			// done
+		}
+
+		// stopping early
+		it = b.entries();
+		assertTrue(it.files.length > 3);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(all.containsKey(it.next().getKey()));
+		}
+		assertTrue(it.files[it.files.length - 1].rch.isOpen());
+		it.close();
+		assertFalse(it.hasNext());
+		for (BitCaskFile f : it.files) {
+			assertFalse(f.rch.isOpen());
+		}
+
+		b.close();
+	}
+
+	@Test
+	public void foldSnapshotTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 1000;
+		final BitCask b = initDataset("/tmp/bc.test.foldsnapshot", opts,
+				defaultDataset());
+
+		for (int i = 0; i < 200; i++) {
+			b.put("k" + i, "v" + i);
+		}
+		Map<ByteString, ByteString> expected = contents(b);
+		File[] files = b.readable_files();
+		Thread.sleep(1100);
+
+		// writes (and a merge) made while folding are not seen by the fold
+		Map<ByteString, ByteString> folded = b.fold(
+				new KeyValueIter<Map<ByteString, ByteString>>() {
+					@Override
+					public Map<ByteString, ByteString> each(ByteString key,
+							ByteString value, Map<ByteString, ByteString> acc) {
+						try {
+							if (acc.isEmpty()) {
+								for (int i = 0; i < 200; i++) {
+									b.put("k" + i, "again" + i);
+									b.put("new" + i, "v");
+								}
+								b.delete("k" + 7);
+								b.merge();
+							}
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+						acc.put(key, value);
+						return acc;
+					}
+				}, new HashMap<ByteString, ByteString>());
+		assertEquals(expected, folded);
+
+		// but by the next one
+		assertEquals("again9", contents(b).get(bs("k9")).toStringUtf8());
+		assertNull(contents(b).get(bs("k7")));
+		assertEquals(0, b.keydir.snapshots.length);
+		for (File f : files) {
+			assertFalse(f.exists());
+		}
+
+		b.close();
+	}
+
+	@Test
+	public void statsTest() throws Exception {
+		BitCask b = initDataset("/tmp/bc.test.stats", defaultDataset());
+		long[] before = sum(b.stats());
+
+		for (int i = 0; i < 10; i++) {
+			b.put("s" + i, "v" + i);
+		}
+		for (int i = 0; i < 5; i++) {
+			b.put("s" + i, "again");
+		}
+		assertTrue(b.delete("s5"));
+
+		// live keys, total keys, live bytes, total bytes
+		long[] after = sum(b.stats());
+		assertEquals(before[0] + 9, after[0]);
+		assertEquals(before[1] + 16, after[1]);
+		assertEquals(b.keydir.size(), after[0]);
+		assertTrue(after[3] - after[2] > before[3] - before[2]);
+		b.close();
+
+		// loading the files gives the same numbers
+		for (BitCaskKeyDir keydir : new BitCaskKeyDir[] { new BitCaskKeyDir(),
+				new OffHeapKeyDir() }) {
+			BitCask.scan_key_files(b.readable_files(), keydir, 1);
+			assertArrayEquals(after, sum(keydir.fstats()));
+		}
+	}
+
+	@Test
+	public void mergeSchedulerTest() throws Exception {
+		File dir = new File("/tmp/bc.test.mergesched");
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 1000;
+		opts.small_file_threshold = 0;
+		opts.max_merge_size = 3000;
+		BitCask b = initDataset(dir.getPath(), opts, defaultDataset());
+
+		Map<ByteString, ByteString> expected = defaultDataset();
+		for (int i = 0; i < 200; i++) {
+			b.put("m" + i, "v" + i);
+			expected.put(bs("m" + i), bs("v" + i));
+		}
+		assertEquals(0, b.merge_candidates().length);
+
+		// the oldest files are now mostly dead
+		for (int i = 0; i < 100; i++) {
+			b.put("m" + i, "again" + i);
+			expected.put(bs("m" + i), bs("again" + i));
+		}
+		Thread.sleep(1100);
+
+		File[] files = b.merge_candidates();
+		assertTrue(files.length > 0);
+		long size = 0;
+		for (int i = 0; i < files.length; i++) {
+			size += files[i].length();
+			if (i > 0) {
+				assertTrue(BitCaskFile.tstamp(files[i - 1]) < BitCaskFile
+						.tstamp(files[i]));
+			}
+			FileStats stats = b.stats().get(BitCaskFile.tstamp(files[i]));
+			assertTrue(stats.fragmentation() >= opts.frag_threshold);
+		}
+		assertTrue(files.length == 1 || size <= opts.max_merge_size);
+		b.close();
+
+		// outside the merge window, nothing happens
+		int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+		opts.merge_check_secs = 1;
+		opts.merge_window_start = (hour + 2) % 24;
+		opts.merge_window_end = (hour + 3) % 24;
+		b = BitCask.open(dir, opts);
+		Thread.sleep(1500);
+		assertEquals(files.length, b.merge_candidates().length);
+		b.close();
+
+		// inside it, the fragmented files are merged away in slices
+		opts.merge_window_start = 0;
+		opts.merge_window_end = 23;
+		b = BitCask.open(dir, opts);
+		for (int i = 0; i < 20 && b.merge_candidates().length > 0; i++) {
+			Thread.sleep(500);
+		}
+		assertEquals(0, b.merge_candidates().length);
+		for (File f : files) {
+			assertFalse(f.exists());
+		}
+		assertEquals(expected, contents(b));
+		b.close();
+
+		BitCaskKeyDir keydir = new BitCaskKeyDir();
+		BitCask.scan_key_files(b.readable_files(), keydir, 1);
+		assertEquals(expected.size(), keydir.size());
+
+		assertTrue(opts.in_merge_window(hour));
+		opts.merge_window_start = 22;
+		opts.merge_window_end = 2;
+		assertTrue(opts.in_merge_window(23));
+		assertTrue(opts.in_merge_window(1));
+		assertFalse(opts.in_merge_window(12));
+
+		// by default, small is relative to the file size
+		assertEquals(0, opts.small_file_threshold());
+		opts.small_file_threshold = -1;
+		assertEquals(100, opts.small_file_threshold());
+	}
+
+	@Test
+	public void deletedMergeSchedulerTest() throws Exception {
+		File dir = new File("/tmp/bc.test.deletedsched");
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 1000;
+		opts.small_file_threshold = 0;
+		opts.max_merge_size = 3000;
+		BitCask b = initDataset(dir.getPath(), opts,
+				new HashMap<ByteString, ByteString>());
+		for (int v = 0; v < 5; v++) {
+			for (int i = 0; i < 100; i++) {
+				b.put("d" + i, "value" + v);
+			}
+		}
+		for (int i = 0; i < 100; i++) {
+			assertTrue(b.delete("d" + i));
+		}
+		b.close();
+		Thread.sleep(1100);
+
+		// merging in slices keeps some tombstones, which must not count as
+		// dead, or the scheduler would rewrite them forever
+		opts.merge_check_secs = 1;
+		opts.merge_window_start = 0;
+		opts.merge_window_end = 23;
+		b = BitCask.open(dir, opts);
+		for (int i = 0; i < 40 && b.merge_candidates().length > 0; i++) {
+			Thread.sleep(500);
+		}
+		assertEquals(0, b.merge_candidates().length);
+		Set<File> converged = new HashSet<File>(Arrays.asList(b
+				.readable_files()));
+		Thread.sleep(2500);
+		assertEquals(converged,
+				new HashSet<File>(Arrays.asList(b.readable_files())));
+		assertEquals(0, b.merge_candidates().length);
+		assertEquals(0, contents(b).size());
+		b.close();
+
+		BitCaskKeyDir keydir = new BitCaskKeyDir();
+		BitCask.scan_key_files(b.readable_files(), keydir, 1);
+		assertEquals(0, keydir.size());
+	}
+
+	private static long[] sum(Map<Integer, FileStats> stats) {
+		long[] sum = new long[4];
+		for (FileStats s : stats.values()) {
+			sum[0] += s.live_keys();
+			sum[1] += s.total_keys();
+			sum[2] += s.live_bytes();
+			sum[3] += s.total_bytes();
+		}
+		return sum;
+	}
+
+	@Test
+	public void getAllTest() throws Exception {
+		for (boolean off_heap : new boolean[] { false, true }) {
+			BitCaskOptions opts = new BitCaskOptions();
+			opts.max_file_size = 20000;
+			opts.off_heap_keydir = off_heap;
+			opts.scan_block_size = 1000;
+			BitCask b = initDataset("/tmp/bc.test.getall" + off_heap, opts,
+					defaultDataset());
+
+			Random r = new Random(7);
+			WriteBatch batch = new WriteBatch();
+			for (int i = 0; i < 2000; i++) {
+				byte[] value = new byte[r.nextInt(200)];
+				r.nextBytes(value);
+				batch.put(bs("k" + i), ByteString.copyFrom(value));
+				if (batch.size() == 50) {
+					b.write(batch);
+					batch.clear();
+				}
+			}
+			for (int i = 0; i < 2000; i += 3) {
+				b.put("k" + i, "again" + i);
+			}
+			b.delete("k10");
+			b.put(bs("k11"), bs("short"), 1);
+			Thread.sleep(2100);
+
+			List<ByteString> keys = new ArrayList<ByteString>();
+			for (int i = 0; i < 2100; i += 1 + r.nextInt(3)) {
+				keys.add(bs("k" + i));
+			}
+			keys.add(bs("k10"));
+			keys.add(bs("k11"));
+			keys.add(bs("k12"));
+			keys.add(bs("k12"));
+			keys.add(bs("nope"));
+
+			Map<ByteString, ByteString> expected = new HashMap<ByteString, ByteString>();
+			for (ByteString key : keys) {
+				ByteString value = b.get(key);
+				if (value != null) {
+					expected.put(key, value);
+				}
+			}
+			assertFalse(expected.containsKey(bs("k10")));
+			assertFalse(expected.containsKey(bs("k11")));
+			assertTrue(expected.containsKey(bs("k12")));
+
+			for (int gap : new int[] { 0, 4096, 1 << 20 }) {
+				opts.read_coalesce_gap = gap;
+				assertEquals(expected, b.getAll(keys));
+			}
+			assertTrue(b.getAll(new ArrayList<ByteString>()).isEmpty());
+
+			// likewise after a merge, once sealed files are mapped
+			b.merge();
+			assertEquals(expected, b.getAll(keys));
+			b.close();
+		}
+	}
+
+	@Test
+	public void compressionTest() throws Exception {
+		File dir = new File("/tmp/bc.test.compress");
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 64 * 1024;
+		Random r = new Random(3);
+
+		// files written without compression stay readable
+		Map<ByteString, ByteString> expected = defaultDataset();
+		BitCask b = initDataset(dir.getPath(), opts, expected);
+		for (int i = 0; i < 200; i++) {
+			ByteString doc = json(r, i);
+			b.put(bs("k" + i), doc);
+			expected.put(bs("k" + i), doc);
+		}
+		b.close();
+
+		opts.codec = LZFCodec.DEFAULT;
+		b = BitCask.open(dir, opts);
+		for (int i = 100; i < 400; i++) {
+			ByteString doc = json(r, i);
+			b.put(bs("k" + i), doc);
+			expected.put(bs("k" + i), doc);
+		}
+		WriteBatch batch = new WriteBatch();
+		for (int i = 400; i < 500; i++) {
+			ByteString doc = json(r, i);
+			batch.put(bs("k" + i), doc);
+			expected.put(bs("k" + i), doc);
+		}
+		b.write(batch);
+		byte[] noise = new byte[1000];
+		r.nextBytes(noise);
+		b.put(bs("noise"), ByteString.copyFrom(noise));
+		expected.put(bs("noise"), ByteString.copyFrom(noise));
+		b.delete("k7");
+		expected.remove(bs("k7"));
+
+		for (Map.Entry<ByteString, ByteString> ent : expected.entrySet()) {
+			assertEquals(ent.getValue(), b.get(ent.getKey()));
+
+			ByteBuffer dst = ByteBuffer.allocate(8 * 1024);
+			dst.position(3);
+			assertEquals(ent.getValue().size(), b.get(ent.getKey(), dst));
+			dst.flip().position(3);
+			assertEquals(ent.getValue(), ByteString.copyFrom(dst));
+		}
+		assertEquals(expected, contents(b));
+		assertEquals(expected, b.getAll(expected.keySet()));
+		assertNull(b.get(bs("k7")));
+
+		// room for the stored entry, but not for the value
+		BitCaskEntry ent = b.keydir.get(bs("k450"));
+		assertTrue(ent.total_sz < BitCaskFile.entry_size(bs("k450"),
+				expected.get(bs("k450"))));
+		ByteBuffer small = ByteBuffer.allocate(ent.total_sz + 1);
+		try {
+			b.get(bs("k450"), small);
+			fail();
+		} catch (BufferOverflowException e) {
+			// expected
+		}
+		assertEquals(0, small.position());
+		assertArrayEquals(new byte[ent.total_sz + 1], small.array());
+
+		// only values that compress are compressed
+		long stored = 0, raw = 0;
+		for (int i = 100; i < 500; i++) {
+			stored += b.keydir.get(bs("k" + i)).total_sz;
+			raw += BitCaskFile.entry_size(bs("k" + i), expected.get(bs("k" + i)));
+		}
+		assertTrue(stored < raw * 3 / 4);
+		// with just the tag in front
+		assertEquals(BitCaskFile.entry_size(bs("noise"), expected
+				.get(bs("noise"))) + 1, b.keydir.get(bs("noise")).total_sz);
+
+		// a merge keeps what is compressed, and compresses the rest
+		opts.codec = new DeflateCodec(1);
+		b.merge();
+		stored = 0;
+		for (int i = 8; i < 100; i++) {
+			stored += b.keydir.get(bs("k" + i)).total_sz;
+		}
+		assertTrue(stored < 92 * 1000);
+		assertEquals(expected, contents(b));
+		b.close();
+
+		BitCaskKeyDir keydir = new BitCaskKeyDir();
+		BitCask.scan_key_files(b.readable_files(), keydir, 1);
+		assertEquals(expected.size(), keydir.size());
+
+		// the compressed flag does not leak into the tstamps
+		for (File f : b.readable_files()) {
+			BitCaskFile file = BitCaskFile.open(f);
+			file.fold_keys_datafile(new KeyIter<Void>() {
+				@Override
+				public Void each(ByteString key, int tstamp, long entry_pos,
+						int entry_size, Void acc) {
+					assertTrue(tstamp > 0);
+					return null;
+				}
+			}, null);
+			file.close();
+		}
+
+		// reading needs no codec configured
+		opts.codec = null;
+		b = BitCask.open(dir, opts);
+		assertEquals(expected, contents(b));
+		BitCaskIterator it = b.entries();
+		int n = 0;
+		while (it.hasNext()) {
+			Map.Entry<ByteString, ByteString> e = it.next();
+			assertEquals(expected.get(e.getKey()), e.getValue());
+			n++;
+		}
+		assertEquals(expected.size(), n);
+		b.close();
+	}
+
+	/** folds and iterators decompress live values only */
+	@Test
+	public void foldDecompressionTest() throws Exception {
+		final AtomicLong decompressed = new AtomicLong();
+		Codec counting = new Codec() {
+			@Override
+			public int id() {
+				return 77;
+			}
+
+			@Override
+			public int compress(byte[] src, int off, int len, byte[] dst,
+					int dst_off) {
+				return LZFCodec.DEFAULT.compress(src, off, len, dst, dst_off);
+			}
+
+			@Override
+			public void decompress(byte[] src, int off, int len, byte[] dst)
+					throws IOException {
+				decompressed.incrementAndGet();
+				LZFCodec.DEFAULT.decompress(src, off, len, dst);
+			}
+		};
+		BitCaskFile.register_codec(counting);
+
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.codec = counting;
+		BitCask b = initDataset("/tmp/bc.test.folddecompress", opts,
+				new HashMap<ByteString, ByteString>());
+		Random r = new Random(4);
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 100; i++) {
+				b.put(bs("k" + i), json(r, i));
+			}
+		}
+		for (int i = 0; i < 50; i++) {
+			b.delete("k" + i);
+		}
+
+		decompressed.set(0);
+		assertEquals(50, contents(b).size());
+		assertEquals(50, decompressed.get());
+
+		decompressed.set(0);
+		BitCaskIterator it = b.entries();
+		while (it.hasNext()) {
+			it.next();
+		}
+		assertEquals(50, decompressed.get());
+		b.close();
+	}
+
+	/**
+	 * Size, and write, fold and merge times for JSON documents, as stored
+	 * and compressed with each codec
+	 */
+	@Test
+	public void compressionPerfTest() throws Exception {
+		Codec[] codecs = { null, LZFCodec.DEFAULT, DeflateCodec.DEFAULT };
+		int n = 10000;
+		for (int round = 0; round < 2; round++) {
+			for (int c = 0; c < codecs.length; c++) {
+				// a fresh directory each time, as keydirs outlive close
+				File dir = new File("/tmp/bc.test.compressperf" + round + c);
+				BitCaskOptions opts = new BitCaskOptions();
+				opts.max_file_size = 4 * 1024 * 1024;
+				opts.codec = codecs[c];
+				BitCask b = initDataset(dir.getPath(), opts, defaultDataset());
+
+				// half of the documents are updated, so merging has work
+				Random r = new Random(1);
+				long raw = 0;
+				for (ByteString value : defaultDataset().values()) {
+					raw += value.size();
+				}
+				long before = System.currentTimeMillis();
+				for (int i = 0; i < n + n / 2; i++) {
+					ByteString doc = json(r, i % n);
+					raw += i < n / 2 ? 0 : doc.size();
+					b.put(bs("doc" + (i % n)), doc);
+				}
+				long written = System.currentTimeMillis();
+
+				long bytes = b.fold(new KeyValueIter<Long>() {
+					@Override
+					public Long each(ByteString key, ByteString value, Long acc) {
+						return acc + value.size();
+					}
+				}, 0L);
+				long folded = System.currentTimeMillis();
+				assertEquals(raw, bytes);
+
+				Thread.sleep(1000);
+				long merging = System.currentTimeMillis();
+				b.merge();
+				long merged = System.currentTimeMillis();
+				assertEquals(n + defaultDataset().size(), contents(b).size());
+
+				long size = 0;
+				for (File f : dir.listFiles()) {
+					if (BitCask.DATA_FILE.matcher(f.getName()).matches()) {
+						size += f.length();
+					}
+				}
+				if (codecs[c] != null) {
+					assertTrue(size < raw * 3 / 4);
+				}
+
+				System.out.println("codec " + (codecs[c] == null ? "none"
+						: codecs[c].getClass().getSimpleName()) + ": " + size
+						+ " bytes for " + raw + " of values, "
+						+ (written - before) + " ms to write, "
+						+ (folded - written) + " ms to fold, "
+						+ (merged - merging) + " ms to merge");
+				b.close();
+				rmdir(dir);
+			}
+		}
+	}
+
+	/** A JSON document like the ones of a typical web service */
+	private static ByteString json(Random r, int id) {
+		String[] names = { "alice", "bob", "carol", "dave", "eve", "mallory" };
+		String[] tags = { "new", "premium", "trial", "beta", "churned" };
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"id\":").append(id);
+		sb.append(",\"name\":\"").append(names[r.nextInt(names.length)])
+				.append(r.nextInt(10000)).append('"');
+		sb.append(",\"email\":\"user").append(r.nextInt(1000000))
+				.append("@example.com\"");
+		sb.append(",\"created\":\"2011-0").append(1 + r.nextInt(9))
+				.append("-1").append(r.nextInt(10)).append("T12:")
+				.append(10 + r.nextInt(50)).append(":00Z\"");
+		sb.append(",\"active\":").append(r.nextBoolean());
+		sb.append(",\"tags\":[");
+		for (int i = r.nextInt(4); i >= 0; i--) {
+			sb.append('"').append(tags[r.nextInt(tags.length)]).append('"')
+					.append(i > 0 ? "," : "");
+		}
+		sb.append("],\"orders\":[");
+		for (int i = 5 + r.nextInt(10); i >= 0; i--) {
+			sb.append("{\"order_id\":").append(r.nextInt(1000000))
+					.append(",\"sku\":\"SKU-").append(r.nextInt(500))
+					.append("\",\"quantity\":").append(1 + r.nextInt(5))
+					.append(",\"price\":").append(r.nextInt(10000) / 100.0)
+					.append(",\"status\":\"")
+					.append(r.nextBoolean() ? "shipped" : "pending")
+					.append("\"}").append(i > 0 ? "," : "");
+		}
+		sb.append("]}");
+		return bs(sb.toString());
+	}
+
+	@Test
+	public void asyncTest() throws Exception {
+		File dir = new File("/tmp/bc.test.async");
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 10000;
+		final AtomicLong reads = new AtomicLong();
+		final ExecutorService pool = Executors.newFixedThreadPool(4);
+		opts.io_executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				reads.incrementAndGet();
+				pool.execute(command);
+			}
+		};
+		BitCask b = initDataset(dir.getPath(), opts, defaultDataset());
+
+		// async writes are applied in the order they were made
+		Map<ByteString, ByteString> expected = defaultDataset();
+		List<Future<Void>> puts = new ArrayList<Future<Void>>();
+		for (int i = 0; i < 2000; i++) {
+			puts.add(b.putAsync(bs("k" + (i % 300)), bs("v" + i)));
+			expected.put(bs("k" + (i % 300)), bs("v" + i));
+		}
+		Future<Boolean> deleted = b.deleteAsync(bs("k7"));
+		Future<Boolean> missing = b.deleteAsync(bs("nope"));
+		expected.remove(bs("k7"));
+		for (Future<Void> f : puts) {
+			f.get();
+		}
+		assertTrue(deleted.get());
+		assertFalse(missing.get());
+		assertEquals(expected, contents(b));
+
+		Map<ByteString, Future<ByteString>> gets = new HashMap<ByteString, Future<ByteString>>();
+		for (ByteString key : expected.keySet()) {
+			gets.put(key, b.getAsync(key));
+		}
+		for (Map.Entry<ByteString, Future<ByteString>> get : gets.entrySet()) {
+			assertEquals(expected.get(get.getKey()), get.getValue().get());
+		}
+		assertNull(b.getAsync(bs("k7")).get());
+		assertEquals(expected.size() + 1, reads.get());
+
+		// writes accepted before close are not lost
+		for (int i = 0; i < 1000; i++) {
+			b.putAsync(bs("late" + i), bs("v" + i));
+			expected.put(bs("late" + i), bs("v" + i));
+		}
+		b.close();
+		pool.shutdown();
+
+		// and none are accepted after
+		try {
+			b.putAsync(bs("closed"), bs("v"));
+			fail();
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+
+		// with group commit, a batch of queued writes is synced at once
+		opts.io_executor = null;
+		opts.sync_strategy = BitCaskOptions.SyncStrategy.GROUP_COMMIT;
+		b = BitCask.open(dir, opts);
+		assertEquals(expected, contents(b));
+		assertEquals(bs("v999"), b.getAsync(bs("late999")).get());
+		puts.clear();
+		for (int i = 0; i < 1000; i++) {
+			puts.add(b.putAsync(bs("late" + i), bs("again" + i)));
+			expected.put(bs("late" + i), bs("again" + i));
+		}
+		deleted = b.deleteAsync(bs("late5"));
+		expected.remove(bs("late5"));
+		for (Future<Void> f : puts) {
+			f.get();
+		}
+		assertTrue(deleted.get());
+		assertEquals(expected, contents(b));
+		b.close();
+	}
+
+	@Test
+	public void offHeapKeyDirTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.off_heap_keydir = true;
+		BitCask b = initDataset("/tmp/bc.test.offheap", opts, defaultDataset());
+
+		assertTrue(b.keydir instanceof OffHeapKeyDir);
+		b.put("k", "v4");
+
+		Map<ByteString, ByteString> expected = defaultDataset();
+		expected.put(bs("k"), bs("v4"));
+		assertEquals(expected, contents(b));
+
+		b.close();
+	}
+
+	/**
+	 * A merge of some files must keep tombstones, as the files left out may
+	 * hold older values; here, the output of an earlier merge, whose id is
+	 * higher than that of the file with the tombstone.
+	 */
+	@Test
+	public void partialMergeTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 100;
+		BitCask b = initDataset("/tmp/bc.test.partialmerge", opts,
+				new HashMap<ByteString, ByteString>());
+
+		// K in file A, sealed by a write to B
+		b.put("K", "old value");
+		b.put("f1", "..................................................");
+		b.put("f2", "..........");
+		File[] a = b.readable_files();
+		assertEquals(1, a.length);
+
+		// the output of merging A gets an id above B
+		Thread.sleep(1100);
+		b.merge(a);
+		File[] m = b.readable_files();
+		assertEquals(1, m.length);
+
+		// the tombstone goes into B, which is then sealed and merged alone
+		assertTrue(b.delete("K"));
+		b.put("f3", "..................................................");
+		List<File> merging = new ArrayList<File>(Arrays.asList(b
+				.readable_files()));
+		merging.remove(m[0]);
+		assertEquals(1, merging.size());
+		assertTrue(BitCaskFile.tstamp(merging.get(0)) < BitCaskFile
+				.tstamp(m[0]));
+		b.merge(merging.toArray(new File[1]));
+		b.close();
+
+		BitCaskKeyDir keydir = new BitCaskKeyDir();
+		BitCask.scan_key_files(b.readable_files(), keydir, 1);
+		assertNull(keydir.get(bs("K")));
+		assertNotNull(keydir.get(bs("f1")));
+	}
+
+	/** merging deleted keys gives their space back */
+	@Test
+	public void deleteMergeTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 1000;
+		BitCask b = initDataset("/tmp/bc.test.deletemerge", opts,
+				new HashMap<ByteString, ByteString>());
+
+		for (int v = 0; v < 10; v++) {
+			for (int i = 0; i < 100; i++) {
+				b.put("k" + i, "value " + v + " of key " + i);
+			}
+		}
+		for (int i = 0; i < 100; i++) {
+			b.delete("k" + i);
+		}
+		Thread.sleep(1100);
+
+		// the other files may hold values for the keys, so tombstones stay
+		File[] files = b.readable_files();
+		long bytes = data_bytes(files);
+		b.merge(Arrays.copyOf(files, files.length / 2));
+		File[] merged = b.readable_files();
+		assertTrue(merged.length < files.length);
+		assertTrue(data_bytes(merged) < bytes);
+
+		// but once all are merged, they go too
+		Thread.sleep(1100);
+		b.merge();
+		assertEquals(0, b.readable_files().length);
+		b.close();
+
+		BitCaskKeyDir keydir = new BitCaskKeyDir();
+		BitCask.scan_key_files(b.readable_files(), keydir, 1);
+		assertEquals(0, keydir.size());
+	}
+
+	private static long data_bytes(File[] files) {
+		long bytes = 0;
+		for (File f : files) {
+			bytes += f.length();
+		}
+		return bytes;
+	}
+
+	/** folds started while a merge deletes files still see every key */
+	@Test
+	public void foldDuringMergeTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 50;
+		final BitCask b = initDataset("/tmp/bc.test.foldmerge", opts,
+				defaultDataset());
+
+		for (int i = 0; i < 500; i++) {
+			b.put("k" + i, "v" + i);
+		}
+		Map<ByteString, ByteString> expected = contents(b);
+		Thread.sleep(1100);
+
+		Thread merger = new Thread() {
+			public void run() {
+				try {
+					b.merge();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		merger.start();
+		do {
+			assertEquals(expected, contents(b));
+		} while (merger.isAlive());
+		merger.join();
+
+		assertEquals(expected, contents(b));
+		b.close();
+	}
+
+	@Test
+	public void mergeTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 100;
+		BitCask b = initDataset("/tmp/bc.test.merge", opts, defaultDataset());
+
+		for (int i = 0; i < 10; i++) {
+			b.put("k", "v" + i);
+			b.put("k2", "v2");
+		}
+
+		// only files sealed before the current second are merged
+		Thread.sleep(1100);
+
+		int before = b.readable_files().length;
+		b.merge();
+		int after = b.readable_files().length;
+
+		assertTrue(after < before);
+
+		Map<ByteString, ByteString> expected = defaultDataset();
+		expected.put(bs("k"), bs("v9"));
+
+		for (Map.Entry<ByteString, ByteString> ents : expected.entrySet()) {
+			assertEquals(ents.getValue(), b.get(ents.getKey()));
+		}
+
+		assertEquals(expected, contents(b));
+
+		b.put("k3", "v4");
+		assertEquals("v4", b.getString("k3"));
+
+		b.close();
+
+		BitCaskKeyDir keydir = new BitCaskKeyDir();
+		BitCask.scan_key_files(b.readable_files(), keydir);
+		assertEquals(expected.size(), keydir.size());
+	}
+
+	/** parallel key scans must produce the same keydir as a serial scan */
+	@Test
+	public void parallelScanTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 64 * 1024;
+		BitCask b = initDataset("/tmp/bc.test.scan", opts, defaultDataset());
+
+		ByteString data = ByteString.copyFrom(new byte[100]);
+		WriteBatch batch = new WriteBatch();
+		for (int i = 0; i < 100000; i++) {
+			batch.put(bs("k" + (i % 20000)), data);
+		}
+		b.write(batch);
+		b.close();
+
+		File[] files = b.readable_files();
+		BitCaskKeyDir expected = null;
+
+		for (int threads : new int[] { 1, 4, 16 }) {
+			BitCaskKeyDir keydir = new BitCaskKeyDir();
+
+			long before = System.currentTimeMillis();
+			BitCask.scan_key_files(files, keydir, threads);
+			long after = System.currentTimeMillis();
+
+			System.out.println("" + (after - before) + " ms to scan "
+					+ files.length + " files with " + threads + " threads");
+
+			if (expected == null) {
+				expected = keydir;
+				assertEquals(20001, keydir.size());
+			} else {
+				assertEquals(expected.size(), keydir.size());
+				for (Map.Entry<ByteString, BitCaskEntry> ent : expected.map.entrySet()) {
+					BitCaskKeyDirTest.assertSameEntry(ent.getValue(),
+							keydir.get(ent.getKey()));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void checkpointTest() throws Exception {
+		File dir = new File("/tmp/bc.test.checkpoint");
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 64 * 1024;
+		opts.keydir_checkpoint = true;
+		BitCask b = initDataset(dir.getPath(), opts, defaultDataset());
+
+		ByteString data = ByteString.copyFrom(new byte[100]);
+		WriteBatch batch = new WriteBatch();
+		for (int i = 0; i < 20000; i++) {
+			batch.put(bs("k" + i), data);
+		}
+		b.write(batch);
+		b.close();
+
+		// written after the checkpoint: a tail and a new file
+		BitCaskOptions more = new BitCaskOptions();
+		more.read_write = true;
+		more.max_file_size = 64 * 1024;
+		b = BitCask.open(dir, more);
+		batch.clear();
+		for (int i = 0; i < 1000; i++) {
+			batch.put(bs("k" + (i * 7)), bs("v" + i));
+			batch.put(bs("new" + i), data);
+		}
+		b.write(batch);
+		b.close();
+
+		File[] files = b.readable_files();
+		BitCaskKeyDir expected = new BitCaskKeyDir();
+		BitCask.scan_key_files(files, expected, 1);
+		assertEquals(21001, expected.size());
+
+		for (BitCaskKeyDir keydir : new BitCaskKeyDir[] { new BitCaskKeyDir(),
+				new OffHeapKeyDir() }) {
+			Map<Integer, Long> covered = KeyDirCheckpoint.load(dir, keydir);
+			assertNotNull(covered);
+			assertEquals(20001, keydir.size());
+
+			BitCask.replay_key_files(files, covered, keydir, 2);
+			assertEquals(expected.size(), keydir.size());
+			for (Map.Entry<ByteString, BitCaskEntry> ent : expected.map.entrySet()) {
+				BitCaskKeyDirTest.assertSameEntry(ent.getValue(),
+						keydir.get(ent.getKey()));
+			}
+			assertArrayEquals(sum(expected.fstats()), sum(keydir.fstats()));
+		}
+
+		// a merge removes covered files, so the snapshot is stale
+		Thread.sleep(1100);
+		b = BitCask.open(dir, more);
+		b.merge();
+		b.close();
+
+		assertNull(KeyDirCheckpoint.load(dir, new BitCaskKeyDir()));
+	}
+
+	/** reads from many threads, alongside a writer, should scale with cores */
+	@Test
+	public void concurrentReadTest() throws Exception {
+		BitCaskOptions opts = new BitCaskOptions();
+		opts.max_file_size = 256 * 1024;
+		final BitCask b = initDataset("/tmp/bc.test.concurrent", opts,
+				defaultDataset());
+
+		final int n = 20000;
+		WriteBatch batch = new WriteBatch();
+		for (int i = 0; i < n; i++) {
+			batch.put("k" + i, "v" + i);
+		}
+		b.write(batch);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= 2 * cores; threads *= 2) {
+
+			final AtomicBoolean done = new AtomicBoolean();
+			final AtomicLong reads = new AtomicLong();
+			final Throwable[] failure = new Throwable[1];
+
+			Thread writer = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; !done.get(); i++) {
+							b.put("w" + (i % 1000), "v" + i);
+						}
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+
+			Thread[] readers = new Thread[threads];
+			for (int t = 0; t < threads; t++) {
+				final Random random = new Random(t);
+				readers[t] = new Thread() {
+					public void run() {
+						try {
+							int count = 0;
+							while (!done.get()) {
+								int i = random.nextInt(n);
+								assertEquals("v" + i, b.getString("k" + i));
+								count++;
+							}
+							reads.addAndGet(count);
+						} catch (Throwable e) {
+							failure[0] = e;
+						}
+					}
+				};
+			}
+
+			writer.start();
+			for (Thread reader : readers) {
+				reader.start();
+			}
+			Thread.sleep(500);
+			done.set(true);
+			writer.join();
+			for (Thread reader : readers) {
+				reader.join();
+			}
+
+			assertNull(failure[0]);
+			System.out.println("" + threads + " reader threads: "
+					+ (reads.get() * 2) + " gets/sec");
+		}
+
+		b.close();
 	}
 
 	@Test
@@ -86,20 +1581,89 @@ public class BitCaskTest {
 	}
 
 	private void runtest() throws IOException, InterruptedException, Exception {
-		int n = 1024 * 100;
+		BitCaskOptions opts = new BitCaskOptions();
+		runtest(opts, 1024 * 100, 1);
+		runBatchTest(1024 * 100, 1000);
+	}
+
+	/** perfTest workload, written in batches */
+	private void runBatchTest(int n, int batch_size) throws Exception {
 		ByteString data = ByteString.copyFrom(new byte[1000]);
-		
+
 		File dirname = new File("/tmp/bc.test.perf");
 		rmdir(dirname);
 		BitCaskOptions opts = new BitCaskOptions();
 		opts.read_write = true;
 		BitCask b = BitCask.open(dirname, opts);
-		
+
 		System.gc();
 		long before = System.currentTimeMillis();
+		WriteBatch batch = new WriteBatch();
 		for (int i = 0; i < n; i++) {
-			b.put(bs("k"+i), data);
+			batch.put(bs("k"+i), data);
+			if (batch.size() == batch_size) {
+				b.write(batch);
+				batch.clear();
+			}
+		}
+		b.write(batch);
+		long after = System.currentTimeMillis();
+		double secs = (after-before)/1000.00;
+
+		System.out.println(""+secs+" secs for writing "+n+" entries in batches of "+batch_size);
+		System.out.println(""+(1000.0*secs/n)+" ms per entry");
+
+		b.close();
+	}
+
+	/** same workload as perfTest, for each sync strategy, with 8 writers */
+	@Test
+	public void syncPerfTest() throws Exception {
+		for (BitCaskOptions.SyncStrategy strategy : BitCaskOptions.SyncStrategy.values()) {
+			BitCaskOptions opts = new BitCaskOptions();
+			opts.sync_strategy = strategy;
+			System.out.println("sync_strategy " + strategy + ":");
+			runtest(opts, 1024 * 10, 8);
+		}
+	}
+
+	private void runtest(BitCaskOptions opts, final int n, int threads)
+			throws IOException, InterruptedException, Exception {
+		final ByteString data = ByteString.copyFrom(new byte[1000]);
+		
+		File dirname = new File("/tmp/bc.test.perf");
+		rmdir(dirname);
+		opts.read_write = true;
+		final BitCask b = BitCask.open(dirname, opts);
+		
+		System.gc();
+		long before = System.currentTimeMillis();
+
+		Thread[] writers = new Thread[threads];
+		final IOException[] failure = new IOException[1];
+		for (int t = 0; t < threads; t++) {
+			final int first = t * (n / threads);
+			final int last = first + (n / threads);
+			writers[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = first; i < last; i++) {
+							b.put(bs("k"+i), data);
+						}
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+				}
+			};
+			writers[t].start();
 		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+
 		long after = System.currentTimeMillis();
 		double secs = (after-before)/1000.00;
 		
@@ -0,0 +1,107 @@
+package com.trifork.bitcask;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+public class ChecksumTest {
+
+	private static final Checksum.Factory[] IMPLEMENTATIONS = {
+			CRC32.FACTORY, JdkCRC32.FACTORY };
+
+	@Test
+	public void testCheckValue() {
+		byte[] data = ByteString.copyFromUtf8("123456789").toByteArray();
+
+		for (Checksum.Factory f : IMPLEMENTATIONS) {
+			Checksum crc = f.create();
+			crc.update(data);
+			assertEquals(0xCBF43926, crc.getValue());
+		}
+	}
+
+	/** all implementations and all ways of feeding bytes must agree */
+	@Test
+	public void testCompatible() {
+		Random random = new Random(1);
+
+		for (int i = 0; i < 100; i++) {
+			byte[] data = new byte[random.nextInt(20000)];
+			random.nextBytes(data);
+			int off = data.length == 0 ? 0 : random.nextInt(data.length);
+			int len = data.length - off;
+
+			Checksum expected = CRC32.FACTORY.create();
+			for (int j = off; j < data.length; j++) {
+				((CRC32) expected).update(data[j]);
+			}
+
+			ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+			direct.put(data).position(off);
+
+			for (Checksum.Factory f : IMPLEMENTATIONS) {
+				Checksum crc = f.create();
+				crc.update(data, off, len);
+				assertEquals(expected.getValue(), crc.getValue());
+
+				crc.reset();
+				crc.update(ByteString.copyFrom(data, off, len));
+				assertEquals(expected.getValue(), crc.getValue());
+
+				crc.reset();
+				crc.update(ByteBuffer.wrap(data, off, len));
+				assertEquals(expected.getValue(), crc.getValue());
+
+				crc.reset();
+				crc.update(ByteBuffer.wrap(data, off, len).asReadOnlyBuffer());
+				assertEquals(expected.getValue(), crc.getValue());
+
+				crc.reset();
+				crc.update(direct);
+				assertEquals(expected.getValue(), crc.getValue());
+				assertEquals(off, direct.position());
+			}
+		}
+	}
+
+	@Test
+	public void perfTest() {
+		for (int size : new int[] { 32, 1000, 64 * 1024 }) {
+			byte[] data = new byte[size];
+			new Random(2).nextBytes(data);
+			ByteString bs = ByteString.copyFrom(data);
+
+			for (Checksum.Factory f : IMPLEMENTATIONS) {
+				// warm up
+				run(f, bs, 64 * 1024 * 1024);
+
+				long before = System.nanoTime();
+				int n = run(f, bs, 256 * 1024 * 1024);
+				long after = System.nanoTime();
+
+				double secs = (after - before) / 1e9;
+				String name = f.create().getClass().getSimpleName();
+				System.out.println(name + " " + size + " byte values: "
+						+ (int) ((double) n * size / secs / (1024 * 1024))
+						+ " mb/sec");
+			}
+		}
+	}
+
+	private static int run(Checksum.Factory f, ByteString bs, int bytes) {
+		int n = bytes / bs.size();
+		int sum = 0;
+		for (int i = 0; i < n; i++) {
+			Checksum crc = f.create();
+			crc.update(bs);
+			sum += crc.getValue();
+		}
+		return sum == 42 ? n + 1 : n;
+	}
+
+}
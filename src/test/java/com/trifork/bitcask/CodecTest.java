@@ -0,0 +1,88 @@
+package com.trifork.bitcask;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CodecTest {
+
+	private static final Codec[] IMPLEMENTATIONS = { DeflateCodec.DEFAULT,
+			LZFCodec.DEFAULT, new DeflateCodec(1) };
+
+	/** values of all kinds come back as they were */
+	@Test
+	public void testRoundtrip() throws IOException {
+		Random random = new Random(1);
+
+		for (int i = 0; i < 300; i++) {
+			byte[] data = new byte[random.nextInt(20000)];
+			switch (i % 3) {
+			case 0:
+				random.nextBytes(data);
+				break;
+			case 1:
+				// few distinct bytes, so long and overlapping matches
+				for (int j = 0; j < data.length; j++) {
+					data[j] = (byte) random.nextInt(3);
+				}
+				break;
+			case 2:
+				byte[] words = "{\"id\":1,\"name\":\"abc\",\"tags\":[]}"
+						.getBytes("UTF-8");
+				for (int j = 0; j < data.length; j++) {
+					data[j] = words[(j + random.nextInt(2)) % words.length];
+				}
+			}
+			int off = data.length == 0 ? 0 : random.nextInt(data.length);
+			int len = data.length - off;
+
+			for (Codec codec : IMPLEMENTATIONS) {
+				byte[] compressed = new byte[len + len / 16 + 100];
+				int n = codec.compress(data, off, len, compressed, 7);
+				assertTrue(n > 0 || len == 0);
+
+				byte[] out = new byte[len];
+				codec.decompress(compressed, 7, n, out);
+				assertArrayEquals(Arrays.copyOfRange(data, off, data.length),
+						out);
+			}
+		}
+	}
+
+	/** compress gives up when the output does not fit */
+	@Test
+	public void testNoRoom() {
+		byte[] data = new byte[1000];
+		new Random(2).nextBytes(data);
+
+		for (Codec codec : IMPLEMENTATIONS) {
+			assertEquals(-1, codec.compress(data, 0, data.length,
+					new byte[900], 0));
+			assertEquals(-1, codec.compress(new byte[1000], 0, 1000,
+					new byte[10], 5));
+		}
+	}
+
+	@Test
+	public void testCorrupt() throws IOException {
+		byte[] data = new byte[1000];
+		for (Codec codec : IMPLEMENTATIONS) {
+			byte[] compressed = new byte[100];
+			int n = codec.compress(data, 0, data.length, compressed, 0);
+			try {
+				codec.decompress(compressed, 0, n, new byte[999]);
+				fail();
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+}